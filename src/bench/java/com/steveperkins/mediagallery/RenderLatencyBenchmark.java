@@ -0,0 +1,451 @@
+package com.steveperkins.mediagallery;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.event.Event;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
+import javafx.stage.Stage;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures what users actually wait for: the time from a key press reaching {@link Controller#keyPressedEvent},
+ * or from {@link Controller#loadFile(File)} being called, to the frame that first shows the new item.</p>
+ *
+ * <p>The real window is created through {@link Main#show(Stage, String[])}, normally under the headless Monocle
+ * platform (see the <code>renderLatency</code> Gradle task).  A fixture directory of JPEG, PNG, GIF and WAV files
+ * is generated, and a series of scripted scenarios are run against it.  Each step is timed from the moment its
+ * action runs on the JavaFX thread until the first pulse after {@link Controller#setOnRendered(Runnable)} fires,
+ * which is the pulse that draws the new item.</p>
+ *
+ * <p>Results are written as a tab-separated table of latency percentiles per scenario.  Given a baseline table from
+ * an earlier run, any scenario whose 90th percentile has regressed by more than the tolerance (or which has timed
+ * out more often) is reported, and the process exits with a non-zero status so that the build fails.</p>
+ *
+ * <p>The last scenario rejects items in culling mode, waits for each file to be moved, and then undoes the
+ * rejection.  Besides its latency, it checks that every undone item is back in its directory and on screen, and
+ * fails the build otherwise.</p>
+ *
+ * <p>Named parameters:</p>
+ *
+ * <ul>
+ *     <li><code>--output=</code> where to write the results (default "render-latency.tsv")</li>
+ *     <li><code>--baseline=</code> a previous results file to compare against (optional)</li>
+ *     <li><code>--tolerance=</code> the allowed fractional regression (default 0.25)</li>
+ *     <li><code>--iterations=</code> the number of steps per scenario (default 40)</li>
+ *     <li><code>--fixtures=</code> a directory for the generated files (default a new temporary directory)</li>
+ * </ul>
+ */
+public class RenderLatencyBenchmark extends Application {
+
+    private static final long STEP_TIMEOUT_SECONDS = 10;
+    /** Regressions smaller than this are treated as noise, however large they are relatively. */
+    private static final double NOISE_FLOOR_MILLIS = 2.0;
+    private static final String HEADER = "# scenario\tsamples\ttimeouts\tp50_ms\tp90_ms\tp99_ms\tmax_ms";
+
+    /**
+     * The latencies recorded for one scenario.
+     */
+    private static class Result {
+        private final List<Double> millis = new ArrayList<>();
+        private int timeouts = 0;
+
+        private double percentile(final double fraction) {
+            if (millis.isEmpty()) return 0;
+            final double[] sorted = millis.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+            return sorted[(int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1)];
+        }
+    }
+
+    private Controller controller;
+    private Stage stage;
+
+    /** The step currently being timed, touched only on the JavaFX thread. */
+    private CountDownLatch pendingStep;
+    private long stepStarted;
+    private boolean stepRendered;
+    private double stepMillis;
+
+    public static void main(final String[] args) {
+        launch(args);
+    }
+
+    @Override
+    public void start(final Stage primaryStage) throws Exception {
+        stage = primaryStage;
+        stage.setWidth(1280);
+        stage.setHeight(800);
+        controller = Main.show(primaryStage, new String[0]);
+        controller.setOnRendered(() -> {
+            if (pendingStep != null) stepRendered = true;
+        });
+
+        // The item is placed during one pulse and drawn at the end of the next, which is when the step completes
+        new AnimationTimer() {
+            @Override
+            public void handle(final long now) {
+                if (pendingStep != null && stepRendered) {
+                    stepMillis = (System.nanoTime() - stepStarted) / 1_000_000.0;
+                    final CountDownLatch step = pendingStep;
+                    pendingStep = null;
+                    step.countDown();
+                }
+            }
+        }.start();
+
+        final Thread script = new Thread(() -> {
+            int status = 1;
+            try {
+                status = run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            Platform.exit();
+            System.exit(status);
+        }, "render-latency-script");
+        script.setDaemon(true);
+        script.start();
+    }
+
+    /**
+     * Generates fixtures, runs every scenario, and writes and compares the results.
+     *
+     * @return the process exit status
+     * @throws Exception
+     */
+    private int run() throws Exception {
+        final Map<String, String> parameters = getParameters().getNamed();
+        final int iterations = Integer.parseInt(parameters.getOrDefault("iterations", "40"));
+        final double tolerance = Double.parseDouble(parameters.getOrDefault("tolerance", "0.25"));
+        final File output = new File(parameters.getOrDefault("output", "render-latency.tsv"));
+        final File fixtures = parameters.containsKey("fixtures")
+                ? new File(parameters.get("fixtures"))
+                : Files.createTempDirectory("render-latency").toFile();
+        final Map<String, List<File>> files = generateFixtures(fixtures, iterations);
+
+        final Map<String, Result> results = new LinkedHashMap<>();
+        for (final String format : files.keySet()) {
+            final Result result = new Result();
+            for (final File file : files.get(format)) {
+                step(result, () -> controller.loadFile(file));
+            }
+            results.put("open-" + format, result);
+        }
+
+        // Navigation runs through the mixed directory, so it crosses images and audio in both directions
+        final File first = files.get("jpeg").get(0);
+        step(new Result(), () -> controller.loadFile(first));
+        waitForScan(fixtures);
+
+        final Result next = new Result();
+        for (int i = 0; i < iterations; i++) step(next, () -> pressKey(KeyCode.RIGHT));
+        results.put("next", next);
+
+        final Result previous = new Result();
+        for (int i = 0; i < iterations; i++) step(previous, () -> pressKey(KeyCode.LEFT));
+        results.put("previous", previous);
+
+        final Random random = new Random(42);
+        final Result mixed = new Result();
+        for (int i = 0; i < iterations; i++) {
+            final KeyCode key = random.nextBoolean() ? KeyCode.RIGHT : KeyCode.LEFT;
+            step(mixed, () -> pressKey(key));
+        }
+        results.put("mixed", mixed);
+
+        final List<String> failures = new ArrayList<>();
+        results.put("undo-after-flush", undoAfterFlush(Math.min(iterations, 10), failures));
+
+        write(results, output);
+        System.out.println(String.join("\n", Files.readAllLines(output.toPath(), StandardCharsets.UTF_8)));
+
+        failures.forEach(System.err::println);
+        if (!parameters.containsKey("baseline")) return failures.isEmpty() ? 0 : 1;
+        final List<String> regressions = compare(results, new File(parameters.get("baseline")), tolerance);
+        regressions.forEach(System.err::println);
+        return regressions.isEmpty() && failures.isEmpty() ? 0 : 1;
+    }
+
+    /**
+     * Rejects the current item in culling mode, waits until its file has been moved into the trash folder, and then
+     * times undoing the rejection, which has to move the file back before the item can be shown again.
+     *
+     * @param count the number of items to reject and restore
+     * @param failures collects a description of each item that didn't come back properly
+     * @return
+     * @throws Exception
+     */
+    private Result undoAfterFlush(final int count, final List<String> failures) throws Exception {
+        final Result result = new Result();
+        onFxThread(() -> {
+            controller.getCuller().setEnabled(true);
+            return null;
+        });
+        for (int i = 0; i < count; i++) {
+            final File rejected = onFxThread(this::currentFile);
+            step(new Result(), () -> pressKey(KeyCode.X, false));
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STEP_TIMEOUT_SECONDS);
+            while ((rejected.isFile() || onFxThread(() -> controller.getCuller().isPending(rejected)))
+                    && System.nanoTime() < deadline) {
+                Thread.sleep(20);
+            }
+            if (rejected.isFile()) {
+                failures.add("FAILURE undo-after-flush: " + rejected.getName() + " was never moved to the trash");
+                continue;
+            }
+
+            step(result, () -> pressKey(KeyCode.Z, true));
+            final File shown = onFxThread(this::currentFile);
+            if (!rejected.isFile()) {
+                failures.add("FAILURE undo-after-flush: " + rejected.getName() + " was not moved back");
+            } else if (!rejected.equals(shown)) {
+                failures.add("FAILURE undo-after-flush: " + rejected.getName() + " was restored, but " + shown + " is shown");
+            }
+        }
+        onFxThread(() -> {
+            controller.getCuller().setEnabled(false);
+            return null;
+        });
+        return result;
+    }
+
+    private File currentFile() {
+        final Gallery gallery = controller.getGallery();
+        return gallery.isEmpty() ? null : gallery.get(gallery.position()).getItem();
+    }
+
+    /**
+     * Runs a task on the JavaFX thread, and waits for its result.
+     *
+     * @param task
+     * @return
+     * @throws Exception
+     */
+    private static <T> T onFxThread(final Callable<T> task) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<T> result = new ArrayList<>();
+        final List<Exception> error = new ArrayList<>();
+        Platform.runLater(() -> {
+            try {
+                result.add(task.call());
+            } catch (Exception e) {
+                error.add(e);
+            }
+            latch.countDown();
+        });
+        latch.await();
+        if (!error.isEmpty()) throw error.get(0);
+        return result.get(0);
+    }
+
+    /**
+     * Runs one action on the JavaFX thread, and records how long it took for the resulting item to be drawn.
+     *
+     * @param result
+     * @param action
+     * @throws InterruptedException
+     */
+    private void step(final Result result, final Runnable action) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            pendingStep = latch;
+            stepRendered = false;
+            stepStarted = System.nanoTime();
+            action.run();
+        });
+        if (latch.await(STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            result.millis.add(stepMillis);
+        } else {
+            result.timeouts++;
+            Platform.runLater(() -> pendingStep = null);
+        }
+    }
+
+    /**
+     * Dispatches a key press through the scene, the same way a real keyboard event arrives.
+     *
+     * @param code
+     */
+    private void pressKey(final KeyCode code) {
+        pressKey(code, false);
+    }
+
+    /**
+     * Dispatches a key press, optionally with the platform's shortcut modifier (Ctrl, or Command on a Mac) held.
+     *
+     * @param code
+     * @param shortcut
+     */
+    private void pressKey(final KeyCode code, final boolean shortcut) {
+        final boolean mac = System.getProperty("os.name", "").startsWith("Mac");
+        Event.fireEvent(stage.getScene().getRoot(), new KeyEvent(KeyEvent.KEY_PRESSED, "", "", code,
+                false, shortcut && !mac, false, shortcut && mac));
+    }
+
+    /**
+     * Waits until the background directory scan has added every fixture to the gallery.
+     *
+     * @param fixtures
+     * @throws InterruptedException
+     */
+    private void waitForScan(final File fixtures) throws InterruptedException {
+        // Only files count, since the undo scenario leaves a trash folder behind
+        final File[] all = fixtures.listFiles(File::isFile);
+        final int expected = all == null ? 0 : all.length;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(STEP_TIMEOUT_SECONDS);
+        while (System.nanoTime() < deadline) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final boolean[] done = new boolean[1];
+            Platform.runLater(() -> {
+                done[0] = controller.getGallery().size() >= expected;
+                latch.countDown();
+            });
+            latch.await();
+            if (done[0]) return;
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Writes a set of test media into a directory: photo-sized JPEGs, screenshot-sized PNGs, small GIFs and short
+     * WAV clips, with <code>count</code> files of each format.
+     *
+     * @param directory
+     * @param count
+     * @return the generated files, by format
+     * @throws IOException
+     */
+    private static Map<String, List<File>> generateFixtures(final File directory, final int count) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+        final Map<String, List<File>> files = new LinkedHashMap<>();
+        files.put("jpeg", new ArrayList<>());
+        files.put("png", new ArrayList<>());
+        files.put("gif", new ArrayList<>());
+        files.put("wav", new ArrayList<>());
+        final Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            files.get("jpeg").add(writeImage(new File(directory, String.format("photo-%04d.jpg", i)), "jpg", 4000, 3000, random));
+            files.get("png").add(writeImage(new File(directory, String.format("screen-%04d.png", i)), "png", 1920, 1080, random));
+            files.get("gif").add(writeImage(new File(directory, String.format("icon-%04d.gif", i)), "gif", 400, 400, random));
+            files.get("wav").add(writeWav(new File(directory, String.format("clip-%04d.wav", i)), random));
+        }
+        return files;
+    }
+
+    private static File writeImage(final File file, final String format, final int width, final int height,
+                                   final Random random) throws IOException {
+        if (file.isFile()) return file;
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xffffff)),
+                width, height, new Color(random.nextInt(0xffffff))));
+        graphics.fillRect(0, 0, width, height);
+        // Some detail, so that compressed sizes are realistic rather than trivially small
+        for (int i = 0; i < 200; i++) {
+            graphics.setColor(new Color(random.nextInt(0xffffff)));
+            graphics.fillOval(random.nextInt(width), random.nextInt(height), width / 10, height / 10);
+        }
+        graphics.dispose();
+        if (!ImageIO.write(image, format, file)) throw new IOException("No ImageIO writer for " + format);
+        return file;
+    }
+
+    /**
+     * Writes one second of a 16-bit stereo 44.1 kHz sine tone.
+     */
+    private static File writeWav(final File file, final Random random) throws IOException {
+        if (file.isFile()) return file;
+        final int sampleRate = 44100;
+        final int channels = 2;
+        final int dataLength = sampleRate * channels * 2;
+        final double frequency = 220 + random.nextInt(660);
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeBytes("RIFF");
+            out.writeInt(Integer.reverseBytes(36 + dataLength));
+            out.writeBytes("WAVEfmt ");
+            out.writeInt(Integer.reverseBytes(16));
+            out.writeShort(Short.reverseBytes((short) 1));
+            out.writeShort(Short.reverseBytes((short) channels));
+            out.writeInt(Integer.reverseBytes(sampleRate));
+            out.writeInt(Integer.reverseBytes(sampleRate * channels * 2));
+            out.writeShort(Short.reverseBytes((short) (channels * 2)));
+            out.writeShort(Short.reverseBytes((short) 16));
+            out.writeBytes("data");
+            out.writeInt(Integer.reverseBytes(dataLength));
+            for (int i = 0; i < sampleRate; i++) {
+                final short sample = (short) (Math.sin(2 * Math.PI * frequency * i / sampleRate) * 8000);
+                for (int channel = 0; channel < channels; channel++) out.writeShort(Short.reverseBytes(sample));
+            }
+        }
+        return file;
+    }
+
+    private static void write(final Map<String, Result> results, final File output) throws IOException {
+        final File parent = output.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) throw new IOException("Can't create " + parent);
+        try (final PrintWriter writer = new PrintWriter(output, "UTF-8")) {
+            writer.println(HEADER);
+            for (final Map.Entry<String, Result> entry : results.entrySet()) {
+                final Result result = entry.getValue();
+                writer.println(String.format("%s\t%d\t%d\t%.1f\t%.1f\t%.1f\t%.1f", entry.getKey(),
+                        result.millis.size(), result.timeouts, result.percentile(0.50), result.percentile(0.90),
+                        result.percentile(0.99), result.percentile(1.0)));
+            }
+        }
+    }
+
+    /**
+     * Compares results against a baseline file in the same format, scenario by scenario.
+     *
+     * @param results
+     * @param baseline
+     * @param tolerance
+     * @return a description of each regression, or an empty list if there were none
+     * @throws IOException
+     */
+    private static List<String> compare(final Map<String, Result> results, final File baseline,
+                                        final double tolerance) throws IOException {
+        final List<String> regressions = new ArrayList<>();
+        for (final String line : Files.readAllLines(baseline.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#") || line.trim().isEmpty()) continue;
+            final List<String> columns = Arrays.asList(line.split("\t"));
+            final Result result = results.get(columns.get(0));
+            if (result == null) continue;
+
+            final int baselineTimeouts = Integer.parseInt(columns.get(2));
+            final double baselineP90 = Double.parseDouble(columns.get(4));
+            final double p90 = result.percentile(0.90);
+            if (result.timeouts > baselineTimeouts) {
+                regressions.add(String.format("REGRESSION %s: %d timeouts (baseline %d)",
+                        columns.get(0), result.timeouts, baselineTimeouts));
+            }
+            if (p90 > baselineP90 * (1 + tolerance) && p90 - baselineP90 > NOISE_FLOOR_MILLIS) {
+                regressions.add(String.format("REGRESSION %s: p90 %.1f ms (baseline %.1f ms, tolerance %.0f%%)",
+                        columns.get(0), p90, baselineP90, tolerance * 100));
+            }
+        }
+        return regressions;
+    }
+}
@@ -0,0 +1,144 @@
+package com.steveperkins.mediagallery;
+
+import javafx.beans.binding.Bindings;
+import javafx.beans.property.DoubleProperty;
+import javafx.beans.property.SimpleDoubleProperty;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.ColumnConstraints;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.RowConstraints;
+import javafx.scene.layout.StackPane;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Two or four images side by side (in a 2x1 or 2x2 grid), for picking the best of a burst.</p>
+ *
+ * <p>The panes zoom and pan in lockstep.  Zooming applies the same ratio to every image, just as
+ * {@link Controller}'s single-image view does, and the panes' scroll positions are bound together, so dragging or
+ * scrolling any one of them moves them all to the same relative position.  Neither involves any decoding: each
+ * pane's {@link ImageView} simply scales the full-resolution image it was given.</p>
+ */
+public class CompareView extends GridPane {
+
+    private final List<ScrollPane> panes = new ArrayList<>();
+    private final List<ImageView> imageViews = new ArrayList<>();
+    private final List<Label> captions = new ArrayList<>();
+    private final DoubleProperty hvalue = new SimpleDoubleProperty(0.5);
+    private final DoubleProperty vvalue = new SimpleDoubleProperty(0.5);
+
+    /** The zoom ratio applied to every image, or <code>0</code> to fit each image to its pane. */
+    private double ratio = 0;
+
+    /**
+     * @param count the number of panes, either 2 or 4
+     */
+    public CompareView(final int count) {
+        final int columns = 2;
+        final int rows = (count + columns - 1) / columns;
+        for (int column = 0; column < columns; column++) {
+            final ColumnConstraints constraints = new ColumnConstraints();
+            constraints.setPercentWidth(100.0 / columns);
+            constraints.setHgrow(Priority.ALWAYS);
+            getColumnConstraints().add(constraints);
+        }
+        for (int row = 0; row < rows; row++) {
+            final RowConstraints constraints = new RowConstraints();
+            constraints.setPercentHeight(100.0 / rows);
+            constraints.setVgrow(Priority.ALWAYS);
+            getRowConstraints().add(constraints);
+        }
+        setHgap(2);
+        setVgap(2);
+        setStyle("-fx-background-color: black;");
+
+        for (int slot = 0; slot < count; slot++) {
+            final ImageView imageView = new ImageView();
+            imageView.setPreserveRatio(true);
+            final ScrollPane scrollPane = new ScrollPane();
+            final StackPane stackPane = new StackPane(imageView);
+            // Centre the image whenever it is smaller than the pane
+            stackPane.minWidthProperty().bind(Bindings.createDoubleBinding(() -> scrollPane.getViewportBounds().getWidth(), scrollPane.viewportBoundsProperty()));
+            stackPane.minHeightProperty().bind(Bindings.createDoubleBinding(() -> scrollPane.getViewportBounds().getHeight(), scrollPane.viewportBoundsProperty()));
+            scrollPane.setContent(stackPane);
+            scrollPane.setPannable(true);
+            scrollPane.setStyle("-fx-background: black; -fx-background-color: black;");
+            scrollPane.setFocusTraversable(false);
+            scrollPane.hvalueProperty().bindBidirectional(hvalue);
+            scrollPane.vvalueProperty().bindBidirectional(vvalue);
+
+            final Label caption = new Label();
+            caption.setMouseTransparent(true);
+            caption.setStyle("-fx-text-fill: white; -fx-background-color: rgba(0, 0, 0, 0.6); -fx-padding: 2 6 2 6;");
+            final StackPane cell = new StackPane(scrollPane, caption);
+            StackPane.setAlignment(caption, Pos.BOTTOM_LEFT);
+            add(cell, slot % columns, slot / columns);
+
+            panes.add(scrollPane);
+            imageViews.add(imageView);
+            captions.add(caption);
+            layoutPane(slot);
+        }
+    }
+
+    public int getCount() {
+        return panes.size();
+    }
+
+    /**
+     * Shows an image in one of the panes, at the current zoom.
+     *
+     * @param slot
+     * @param caption the text to overlay on the pane (i.e. the file name), or <code>null</code> for none
+     * @param image the image to show, or <code>null</code> to leave the pane empty
+     */
+    public void show(final int slot, final String caption, final Image image) {
+        captions.get(slot).setText(caption);
+        captions.get(slot).setVisible(caption != null);
+        imageViews.get(slot).setImage(image);
+        layoutPane(slot);
+    }
+
+    /**
+     * Fits every image to its pane.
+     */
+    public void fit() {
+        ratio = 0;
+        for (int slot = 0; slot < panes.size(); slot++) layoutPane(slot);
+    }
+
+    /**
+     * Scales every image by the same ratio of its full size, scrolling if it outgrows its pane.
+     *
+     * @param ratio
+     */
+    public void zoom(final double ratio) {
+        this.ratio = ratio;
+        for (int slot = 0; slot < panes.size(); slot++) layoutPane(slot);
+    }
+
+    private void layoutPane(final int slot) {
+        final ScrollPane scrollPane = panes.get(slot);
+        final ImageView imageView = imageViews.get(slot);
+        imageView.fitWidthProperty().unbind();
+        imageView.fitHeightProperty().unbind();
+        if (ratio <= 0) {
+            scrollPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+            scrollPane.setVbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+            imageView.fitWidthProperty().bind(Bindings.createDoubleBinding(() -> scrollPane.getViewportBounds().getWidth(), scrollPane.viewportBoundsProperty()));
+            imageView.fitHeightProperty().bind(Bindings.createDoubleBinding(() -> scrollPane.getViewportBounds().getHeight(), scrollPane.viewportBoundsProperty()));
+        } else {
+            scrollPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
+            scrollPane.setVbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
+            final Image image = imageView.getImage();
+            imageView.setFitWidth(image == null ? 0 : image.getWidth() * ratio);
+            imageView.setFitHeight(image == null ? 0 : image.getHeight() * ratio);
+        }
+    }
+}
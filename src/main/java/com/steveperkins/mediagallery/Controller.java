@@ -5,6 +5,7 @@ import javafx.beans.binding.Bindings;
 import javafx.beans.value.ChangeListener;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.geometry.Side;
 import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
@@ -16,17 +17,38 @@ import javafx.scene.input.TransferMode;
 import javafx.scene.layout.StackPane;
 import javafx.scene.media.Media;
 import javafx.scene.media.MediaPlayer;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.File;
-import java.net.MalformedURLException;
+import java.io.IOException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.ResourceBundle;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
 
 /**
  * The JavaFX controller bound to "main.fxml", the main UI window.
@@ -42,6 +64,14 @@ public class Controller implements Initializable {
     @FXML
     private CheckMenuItem optionsLoop;
     @FXML
+    private CheckMenuItem optionsSlideshow;
+    @FXML
+    private CheckMenuItem optionsCulling;
+    @FXML
+    private CheckMenuItem optionsCompare2;
+    @FXML
+    private CheckMenuItem optionsCompare4;
+    @FXML
     private MenuItem helpAbout;
     @FXML
     private Label status;
@@ -59,12 +89,67 @@ public class Controller implements Initializable {
     private Button sizeButton;
     @FXML
     private Slider sizeSlider;
+    @FXML
+    private TextField searchField;
+    @FXML
+    private Slider scrubber;
 
     private String[] args;
     private Stage stage;
     private Gallery gallery = new Gallery();
+    private final MemoryGovernor memoryGovernor = new MemoryGovernor();
+    private final TaskScheduler scheduler = new TaskScheduler();
+    private final ResourceTracker resourceTracker = new ResourceTracker();
+    private final DecodedImageCache imageCache = new DecodedImageCache(scheduler, memoryGovernor, resourceTracker);
+    private final Slideshow slideshow = new Slideshow(gallery, memoryGovernor, imageCache, resourceTracker, this::renderSlide);
+    private final Culler culler = new Culler(gallery, scheduler);
+    /** The video on screen (or in its full-screen stage), or <code>null</code> if there is none. */
+    private MediaControl mediaControl;
+    /** The image on screen, whose reference is held with the {@link ResourceTracker} if it is large. */
+    private Image renderedImage;
+    /**
+     * The item whose image is on screen, or <code>null</code> once another item (or gallery) has been selected,
+     * even if the image itself is still showing until its replacement is ready.
+     */
+    private GalleryItem renderedItem;
+    /** The side-by-side view while comparing items, or <code>null</code> when showing one item at a time. */
+    private CompareView compareView;
+    /** Where the "move" culling action sends items, once chosen. */
+    private File moveFolder;
     private boolean fitsize = true;
     private ChangeListener<? super Number> sizeSliderListener;
+    private final ContextMenu searchResults = new ContextMenu();
+
+    /** Incremented on every load, so that scans still running for a previous load can be ignored. */
+    private long loadGeneration = 0;
+    /** The directory the whole gallery was loaded from, or <code>null</code> for an archive or ad-hoc gallery. */
+    private File galleryDirectory;
+    /** The directory's modification time when it was last listed, or <code>-1</code> while it is being scanned. */
+    private long galleryDirectoryModified = -1;
+    /** The archive that the gallery was populated from, held open until the gallery is cleared or replaced. */
+    private ZipFile galleryArchive;
+    /** Incremented on every render, so that decodes still running for a previous item can be ignored. */
+    private long renderGeneration = 0;
+    private CompletableFuture<ByteBuffer> pendingImageRead;
+    /** Set while the rendered image is being downscaled to relieve memory pressure. */
+    private boolean downscaleInFlight = false;
+    /** Times the item being rendered, from selection until it is on screen. */
+    private Trace.Span renderSpan;
+
+    /** Set while the scrubber is being moved to follow the gallery, so that it doesn't seek in turn. */
+    private boolean scrubberUpdating = false;
+    /** Low-resolution previews shown while scrubbing, least recently used first. */
+    private final Map<File, Image> previews = new LinkedHashMap<>(16, 0.75f, true);
+    /** The gallery position most recently scrubbed to, or -1 when not scrubbing. */
+    private int previewTarget = -1;
+    private boolean previewInFlight = false;
+    /** Called whenever a new item has been placed on screen, for the render latency harness. */
+    private Runnable onRendered;
+
+    private static final int SEARCH_RESULT_LIMIT = 15;
+    private static final int SCAN_BATCH_SIZE = 1024;
+    private static final int PREVIEW_SIZE = 320;
+    private static final int PREVIEW_CACHE_SIZE = 64;
 
     /**
      * Called automatically by JavaFX when creating the UI.
@@ -76,7 +161,10 @@ public class Controller implements Initializable {
     public void initialize(final URL location, final ResourceBundle resources) {
         initializeMenuBar();
         initializeStatusBar();
+        initializeSearch();
+        initializeScrubber();
         initializeDragAndDrop();
+        initializeMemoryGovernor();
 
         // TODO: Add event handlers (or a bidirectional property?) to synchronize the slider position when the image changes size through other means
 
@@ -99,15 +187,83 @@ public class Controller implements Initializable {
      * @param event
      */
     void keyPressedEvent(KeyEvent event) {
+        // Keystrokes typed into the search box are not gallery navigation
+        if (event.getTarget() instanceof TextInputControl) return;
+
+        if (event.isShortcutDown() && event.getCode().equals(KeyCode.Z)) {
+            final long generation = loadGeneration;
+            culler.undo().thenAccept(position -> {
+                if (position >= 0 && generation == loadGeneration) render(gallery.seek(position));
+            });
+            return;
+        }
         if (!gallery.isEmpty()) {
             if (event.getCode().equals(KeyCode.RIGHT) || event.getCode().equals(KeyCode.DOWN)) {
                 renderNext();
             } else if (event.getCode().equals(KeyCode.LEFT) || event.getCode().equals(KeyCode.UP)) {
                 renderPrevious();
+            } else if (culler.isEnabled()) {
+                cullingKeyPressed(event);
+            } else if ((event.getCode().isLetterKey() || event.getCode().isDigitKey())
+                    && !event.isControlDown() && !event.isAltDown() && !event.isMetaDown()) {
+                // Type-to-find: start a new search.  Focus moves before the matching KEY_TYPED event is
+                // dispatched, so the character itself lands in the search box.
+                searchField.clear();
+                searchField.requestFocus();
             }
         }
     }
 
+    /**
+     * <p>Handles the culling mode keys: "P" toggles the flag on the current item, "X" or Delete rejects it, and "M"
+     * moves it to a folder (chosen on first use, or again with Shift+M).  Rejected and moved items leave the gallery
+     * straight away, and the next item is shown, while the files themselves are moved in the background.</p>
+     *
+     * @param event
+     */
+    private void cullingKeyPressed(final KeyEvent event) {
+        switch (event.getCode()) {
+            case P:
+                culler.toggleFlag();
+                break;
+            case X:
+            case DELETE:
+                if (culler.reject()) renderAfterRemoval();
+                break;
+            case M:
+                if (moveFolder == null || event.isShiftDown()) {
+                    final DirectoryChooser directoryChooser = new DirectoryChooser();
+                    directoryChooser.setTitle("Move to folder");
+                    directoryChooser.setInitialDirectory(moveFolder != null ? moveFolder : gallery.directory());
+                    final File chosen = directoryChooser.showDialog(stage);
+                    if (chosen == null) return;
+                    moveFolder = chosen;
+                }
+                if (culler.move(moveFolder)) renderAfterRemoval();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Renders whichever item has taken the place of one just removed from the gallery, or clears the main content
+     * area if the gallery is now empty.
+     */
+    private void renderAfterRemoval() {
+        if (!gallery.isEmpty()) {
+            render(gallery.get(gallery.position()));
+            return;
+        }
+        renderGeneration++;
+        releaseRendered();
+        sizeSlider.valueProperty().removeListener(sizeSliderListener);
+        content.getChildren().clear();
+        stage.setTitle("MediaGallery");
+        culler.show(null);
+        syncScrubber();
+    }
+
     /**
      * Registers event handlers for the menu bar actions.
      */
@@ -117,16 +273,32 @@ public class Controller implements Initializable {
             fileChooser.setInitialDirectory(gallery.directory());
             fileChooser.getExtensionFilters().addAll(
                     new FileChooser.ExtensionFilter("All supported files",
-                            GalleryItem.allExtensions.stream().map(ext -> "*" + ext).collect(Collectors.toList())),
+                            Stream.concat(GalleryItem.allExtensions.stream(), GalleryItem.archiveExtensions.stream())
+                                    .map(ext -> "*" + ext).collect(Collectors.toList())),
                     new FileChooser.ExtensionFilter("Images",
                             GalleryItem.imageExtensions.stream().map(ext -> "*" + ext).collect(Collectors.toList())),
                     new FileChooser.ExtensionFilter("Audio/Video",
-                            GalleryItem.videoExtensions.stream().map(ext -> "*" + ext).collect(Collectors.toList()))
+                            GalleryItem.videoExtensions.stream().map(ext -> "*" + ext).collect(Collectors.toList())),
+                    new FileChooser.ExtensionFilter("Archives",
+                            GalleryItem.archiveExtensions.stream().map(ext -> "*" + ext).collect(Collectors.toList()))
             );
             final File file = fileChooser.showOpenDialog(null);
             loadFile(file);
         });
         fileExit.setOnAction(actionEvent -> Platform.exit());
+        optionsSlideshow.setOnAction(actionEvent -> {
+            if (optionsSlideshow.isSelected()) {
+                slideshow.setFitSize(content.getWidth(), content.getHeight());
+                slideshow.start();
+                // A video already on screen when the slideshow starts should also hand over at its end
+                if (mediaControl != null) slideshow.showing(mediaControl);
+            } else {
+                slideshow.stop();
+            }
+        });
+        optionsCulling.setOnAction(actionEvent -> culler.setEnabled(optionsCulling.isSelected()));
+        optionsCompare2.setOnAction(actionEvent -> setCompare(optionsCompare2.isSelected() ? 2 : 0));
+        optionsCompare4.setOnAction(actionEvent -> setCompare(optionsCompare4.isSelected() ? 4 : 0));
         helpAbout.setOnAction(actionEvent -> {
             final Alert dialog = new Alert(
                     Alert.AlertType.NONE,
@@ -143,7 +315,11 @@ public class Controller implements Initializable {
      * Initializes the controls and status label on the status bar.
      */
     private void initializeStatusBar() {
-        status.textProperty().bind(gallery.statusProperty());
+        status.textProperty().bind(Bindings.concat(gallery.statusProperty(), culler.statusProperty(),
+                slideshow.reportProperty(), resourceTracker.reportProperty()));
+        final Tooltip statusTooltip = new Tooltip();
+        statusTooltip.setOnShowing(event -> statusTooltip.setText(gallery.footprintSummary() + "\n" + resourceTracker.summary()));
+        status.setTooltip(statusTooltip);
         beginningButton.setOnAction(event -> {
             renderFirst();
             content.requestFocus();
@@ -164,7 +340,7 @@ public class Controller implements Initializable {
             // Validate that the main content area contains an ImageView, either directly or within scrollbars
             if (content.getChildren().size() < 1) return;
             final Node contentNode = content.getChildren().get(0);
-            if (!(contentNode instanceof ImageView || contentNode instanceof ScrollPane)) return;
+            if (!(contentNode instanceof ImageView || contentNode instanceof ScrollPane || contentNode instanceof CompareView)) return;
 
             if (fitsize) {
                 // Switch to actual size
@@ -178,21 +354,25 @@ public class Controller implements Initializable {
                 sizeButton.setGraphic(sizeButtonImageView);
                 fitsize = true;
 
-                ImageView imageView;
-                if (contentNode instanceof ImageView) {
-                    imageView = (ImageView) contentNode;
+                if (contentNode instanceof CompareView) {
+                    ((CompareView) contentNode).fit();
                 } else {
-                    final ScrollPane scrollPane = (ScrollPane) contentNode;
-                    final StackPane stackPane = (StackPane) scrollPane.getContent();
-                    imageView = (ImageView) stackPane.getChildren().get(0);
+                    ImageView imageView;
+                    if (contentNode instanceof ImageView) {
+                        imageView = (ImageView) contentNode;
+                    } else {
+                        final ScrollPane scrollPane = (ScrollPane) contentNode;
+                        final StackPane stackPane = (StackPane) scrollPane.getContent();
+                        imageView = (ImageView) stackPane.getChildren().get(0);
+                    }
+                    content.getChildren().clear();
+                    imageView.fitWidthProperty().unbind();
+                    imageView.fitHeightProperty().unbind();
+                    imageView.fitWidthProperty().bind(content.widthProperty());
+                    imageView.fitHeightProperty().bind(content.heightProperty());
+                    imageView.setViewport(null);
+                    content.getChildren().add(imageView);
                 }
-                content.getChildren().clear();
-                imageView.fitWidthProperty().unbind();
-                imageView.fitHeightProperty().unbind();
-                imageView.fitWidthProperty().bind(content.widthProperty());
-                imageView.fitHeightProperty().bind(content.heightProperty());
-                imageView.setViewport(null);
-                content.getChildren().add(imageView);
             }
             sizeSlider.setValue(0);
             content.requestFocus();
@@ -211,19 +391,257 @@ public class Controller implements Initializable {
     }
 
     /**
-     * Registers event handlers for loading files by drag-n-dropping them onto the window's main content area.
+     * <p>Wires up the type-to-find box on the status bar.  Every keystroke queries the gallery's file name index,
+     * and lists the matches in a drop-down.  Choosing a match (or pressing Enter for the first one) jumps the
+     * gallery cursor straight to that item.</p>
+     */
+    private void initializeSearch() {
+        searchField.textProperty().addListener((observable, oldValue, newValue) -> {
+            searchResults.getItems().clear();
+            final int[] matches = gallery.find(newValue, SEARCH_RESULT_LIMIT);
+            if (matches.length == 0) {
+                searchResults.hide();
+                return;
+            }
+            for (final int match : matches) {
+                final MenuItem menuItem = new MenuItem(gallery.name(match));
+                menuItem.setOnAction(event -> jumpTo(match));
+                searchResults.getItems().add(menuItem);
+            }
+            if (!searchResults.isShowing()) {
+                searchResults.show(searchField, Side.TOP, 0, 0);
+            }
+        });
+        searchField.setOnAction(event -> {
+            final int[] matches = gallery.find(searchField.getText(), 1);
+            if (matches.length > 0) jumpTo(matches[0]);
+        });
+        searchField.addEventHandler(KeyEvent.KEY_PRESSED, event -> {
+            if (event.getCode().equals(KeyCode.ESCAPE)) {
+                searchField.clear();
+                searchResults.hide();
+                content.requestFocus();
+            }
+        });
+    }
+
+    /**
+     * Renders the item at a given gallery position, selected from the search results.
+     *
+     * @param index
+     */
+    private void jumpTo(final int index) {
+        searchResults.hide();
+        render(gallery.seek(index));
+        content.requestFocus();
+    }
+
+    /**
+     * <p>Wires up the scrubber on the status bar, which spans the whole gallery from first item to last.</p>
+     *
+     * <p>While the thumb is being dragged, the gallery cursor follows it and a low-resolution preview of the item
+     * under it is shown.  Only one preview is read and decoded at a time, and whenever one finishes the next one
+     * is for wherever the thumb has got to by then, so dragging across tens of thousands of items never builds up
+     * a backlog.  The full-resolution render happens once, when the thumb is released.  Clicking on the track
+     * renders the item there directly.</p>
+     */
+    private void initializeScrubber() {
+        scrubber.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if (scrubberUpdating || gallery.isEmpty()) return;
+            final int index = gallery.indexOf(newValue.doubleValue());
+            if (index == gallery.position() && scrubber.isValueChanging()) return;
+            if (scrubber.isValueChanging()) {
+                gallery.seek(index);
+                requestPreview(index);
+            } else if (index != gallery.position()) {
+                render(gallery.seek(index));
+            }
+        });
+        scrubber.valueChangingProperty().addListener((observable, wasChanging, isChanging) -> {
+            if (isChanging || gallery.isEmpty()) return;
+            previewTarget = -1;
+            render(gallery.seek(scrubber.getValue()));
+        });
+        scrubber.setOnMouseReleased(event -> content.requestFocus());
+        scrubber.setOnKeyReleased(event -> content.requestFocus());
+
+        memoryGovernor.register("scrubber previews", MemoryGovernor.Priority.THUMBNAIL, new MemoryGovernor.Evictable() {
+            @Override
+            public long footprint() {
+                long total = 0;
+                for (final Image preview : previews.values()) {
+                    total += (long) preview.getWidth() * (long) preview.getHeight() * 4;
+                }
+                return total;
+            }
+
+            @Override
+            public long evict(final long bytes) {
+                long freed = 0;
+                final Iterator<Image> iterator = previews.values().iterator();
+                while (freed < bytes && iterator.hasNext()) {
+                    final Image preview = iterator.next();
+                    freed += (long) preview.getWidth() * (long) preview.getHeight() * 4;
+                    iterator.remove();
+                }
+                return freed;
+            }
+        });
+    }
+
+    /**
+     * Moves the scrubber thumb to the gallery cursor, unless the user is dragging it.
+     */
+    private void syncScrubber() {
+        if (scrubber.isValueChanging()) return;
+        final int size = gallery.size();
+        scrubberUpdating = true;
+        scrubber.setDisable(size < 2);
+        scrubber.setBlockIncrement(size < 2 ? 1.0 : 1.0 / (size - 1));
+        scrubber.setValue(size < 2 ? 0 : (double) gallery.position() / (size - 1));
+        scrubberUpdating = false;
+    }
+
+    /**
+     * Shows a low-resolution preview of the image at a given gallery position while scrubbing, from the preview
+     * cache if possible.  Otherwise it is read and decoded at {@link #PREVIEW_SIZE}, unless another preview is
+     * already on its way, in which case this position is picked up when that one finishes.  Videos have no
+     * preview, and leave the last one on screen.
+     *
+     * @param index
+     */
+    private void requestPreview(final int index) {
+        previewTarget = index;
+        final GalleryItem item = gallery.get(index);
+        if (!item.isImage()) return;
+        final Image cached = previews.get(item.getItem());
+        if (cached != null) {
+            showPreview(item, cached, true);
+            return;
+        }
+        if (previewInFlight) return;
+
+        previewInFlight = true;
+        final long generation = loadGeneration;
+        scheduler.submitIo(TaskScheduler.Priority.VISIBLE, item.getSourceFile(), () -> MediaFiles.read(item))
+            .thenCompose(data -> scheduler.submitCpu(TaskScheduler.Priority.VISIBLE,
+                    () -> ImageDecoders.decode(data, PREVIEW_SIZE, PREVIEW_SIZE)))
+            .whenCompleteAsync((image, error) -> {
+                previewInFlight = false;
+                if (error == null && !image.isError()) {
+                    previews.put(item.getItem(), image);
+                    if (previews.size() > PREVIEW_CACHE_SIZE) {
+                        previews.remove(previews.keySet().iterator().next());
+                    }
+                    if (previewTarget == index) showPreview(item, image, false);
+                }
+                // Catch up with the thumb, if it has moved on while this preview was loading
+                if (generation == loadGeneration && previewTarget >= 0 && previewTarget != index
+                        && previewTarget < gallery.size() && scrubber.isValueChanging()) {
+                    requestPreview(previewTarget);
+                }
+            }, Platform::runLater);
+    }
+
+    /**
+     * Places a scrubbing preview into the main content area, if the thumb is still being dragged.
+     *
+     * @param item
+     * @param preview
+     * @param cached whether the preview came from the preview cache, rather than being decoded for this call
+     */
+    private void showPreview(final GalleryItem item, final Image preview, final boolean cached) {
+        if (!scrubber.isValueChanging()) return;
+        releaseCurrent(item);
+        renderSpan.cacheHit(cached).detail("preview");
+        renderImage(item, preview);
+    }
+
+    /**
+     * <p>Registers event handlers for loading files by drag-n-dropping them onto the window's main content area.</p>
+     *
+     * <p>Dropping a single file loads it along with its directory, just like opening it.  Dropping several files,
+     * or any folders, builds a gallery of exactly what was dropped (see {@link #loadFiles(List)}).</p>
      */
     private void initializeDragAndDrop() {
         content.addEventHandler(DragEvent.DRAG_OVER, event -> {
-            if (event.getDragboard().hasFiles() && GalleryItem.create(event.getDragboard().getFiles().get(0)) != null) {
+            // Drag-over events arrive continuously, so names are checked before anything touches the disk
+            final List<File> files = event.getDragboard().hasFiles() ? event.getDragboard().getFiles() : Collections.emptyList();
+            if (files.stream().anyMatch(GalleryItem::hasMediaExtension)
+                    || files.stream().anyMatch(file -> GalleryItem.isArchive(file) || file.isDirectory())) {
                 event.acceptTransferModes(TransferMode.LINK);
             } else {
                 event.consume();
             }
         });
         content.addEventHandler(DragEvent.DRAG_DROPPED, event -> {
-            if (event.getDragboard().hasFiles()) {
-                loadFile(event.getDragboard().getFiles().get(0));
+            if (!event.getDragboard().hasFiles()) return;
+            final List<File> files = event.getDragboard().getFiles();
+            if (files.size() == 1 && !files.get(0).isDirectory()) {
+                loadFile(files.get(0));
+            } else {
+                loadFiles(files);
+            }
+            event.setDropCompleted(true);
+        });
+    }
+
+    /**
+     * <p>Registers the currently-rendered image with the {@link MemoryGovernor}, as the very last thing to evict,
+     * along with the file regions kept by {@link MediaFiles}.</p>
+     *
+     * <p>"Evicting" it means swapping a full-resolution image that is being shown scaled down to fit the window
+     * for a decode at the window's size.  Nothing visibly changes, but a 100 megapixel photo drops from 400 MB to
+     * a few MB.  An image shown at actual size or zoomed in is left alone.</p>
+     *
+     * <p>The downscale is read and decoded through the {@link TaskScheduler}, since eviction is requested on the
+     * JavaFX thread, and swapped in when it completes (unless another item has been rendered, or the image resized,
+     * in the meantime).  So eviction reports nothing freed straight away, and only one downscale runs at a
+     * time.</p>
+     */
+    private void initializeMemoryGovernor() {
+        MediaFiles.register(memoryGovernor);
+        memoryGovernor.register("rendered image", MemoryGovernor.Priority.RENDERED, new MemoryGovernor.Evictable() {
+            @Override
+            public long footprint() {
+                final Image image = content.getChildren().size() > 0 && content.getChildren().get(0) instanceof ImageView
+                        ? ((ImageView) content.getChildren().get(0)).getImage() : null;
+                return image == null ? 0 : (long) image.getWidth() * (long) image.getHeight() * 4;
+            }
+
+            @Override
+            public long evict(final long bytes) {
+                if (!fitsize || content.getWidth() <= 0 || content.getHeight() <= 0) return 0;
+                if (content.getChildren().size() < 1 || !(content.getChildren().get(0) instanceof ImageView)) return 0;
+                final ImageView imageView = (ImageView) content.getChildren().get(0);
+                final Image image = imageView.getImage();
+                if (image.getWidth() <= content.getWidth() && image.getHeight() <= content.getHeight()) return 0;
+
+                // The gallery may be empty, or have moved on, while the old image is still on screen
+                final GalleryItem item = renderedItem;
+                if (item == null || downscaleInFlight) return 0;
+
+                final long generation = renderGeneration;
+                final double width = content.getWidth();
+                final double height = content.getHeight();
+                downscaleInFlight = true;
+                scheduler.submitIo(TaskScheduler.Priority.NEAR_PREFETCH, item.getSourceFile(), () -> MediaFiles.read(item))
+                        .thenCompose(data -> scheduler.submitCpu(TaskScheduler.Priority.NEAR_PREFETCH,
+                                () -> ImageDecoders.decode(data, width, height)))
+                        .whenCompleteAsync((downscaled, error) -> {
+                            downscaleInFlight = false;
+                            if (error != null) {
+                                error.printStackTrace();
+                                return;
+                            }
+                            if (generation != renderGeneration || !fitsize || imageView.getImage() != image) return;
+                            imageView.setImage(downscaled);
+                            if (image == renderedImage) {
+                                resourceTracker.release(renderedImage, Controller.this);
+                                renderedImage = resourceTracker.track(downscaled, Controller.this);
+                            }
+                        }, Platform::runLater);
+                return 0;
             }
         });
     }
@@ -231,47 +649,404 @@ public class Controller implements Initializable {
     /**
      * <p>Called when a file is explicitly selected by the user (i.e. passed as a command-line parameter,
      * drag-n-dropped onto the executable icon, drag-n-dropped onto the application window after launch,
-     * or selected from the File->Open menu item.</p>
+     * or selected from the File->Open menu item.  Package-private so that the render latency harness can drive
+     * it directly.</p>
      *
      * <p>Populates the gallery with all supported files in the same directory as the explicitly-selected
      * file, and renders that explicitly-selected file.  Or else does nothing if the selected file isn't
-     * a supported media item.</p>
+     * a supported media item.  A ZIP or CBZ archive is opened as a gallery of its entries instead.</p>
      *
-     * @param file
+     * <p>Selecting another file in the directory the gallery was already loaded from keeps the gallery, and just
+     * moves the cursor to that file.  The directory is then reconciled in the background by
+     * {@link #refreshDirectory()}, rather than scanned again from scratch.</p>
+     *
+     * @param file the selected file, or <code>null</code> (e.g. when the File->Open dialog is cancelled), in which
+     *             case nothing happens
      */
-    private void loadFile(final File file) {
-        if (gallery != null) {
-            gallery.clear();
+    void loadFile(final File file) {
+        // i.e. the File->Open dialog was cancelled
+        if (file == null) return;
+        // The size comes from the item once it exists, rather than another stat of a file that may be on a slow share
+        final Trace.Span span = Trace.begin(Trace.Stage.LOAD).path(file);
+        if (galleryDirectory != null && galleryDirectory.equals(file.getParentFile()) && !GalleryItem.isArchive(file)) {
+            reopenFile(file, span);
+            return;
+        }
+        gallery.clear();
+        renderedItem = null;
+        loadGeneration++;
+        culler.reset();
+        galleryDirectory = null;
+        closeGalleryArchive();
+        if (GalleryItem.isArchive(file)) {
+            loadArchive(file);
+            span.detail("archive").end();
+            return;
         }
         final GalleryItem item = GalleryItem.create(file);
-        if (item == null) return;
+        if (item == null) {
+            span.detail("unsupported").end();
+            return;
+        }
+        span.size(item.getSize());
 
+        // Render the selected file straight away, and let its siblings stream in behind it
         gallery.add(item);
-        gallery.addAll(findSiblingItems(item));
         render(item);
+        galleryDirectory = file.getParentFile();
+        galleryDirectoryModified = -1;
+        findSiblingItems(item);
+        span.end();
+    }
+
+    /**
+     * Renders a file from the directory the gallery is already loaded from, adding it to the gallery if it isn't
+     * there yet (i.e. it was created since the directory was listed), and then reconciles the gallery with the
+     * directory.
+     *
+     * @param file
+     * @param span
+     */
+    private void reopenFile(final File file, final Trace.Span span) {
+        int index = gallery.indexOf(file);
+        if (index < 0) {
+            final GalleryItem item = GalleryItem.create(file);
+            if (item == null) {
+                span.detail("unsupported").end();
+                return;
+            }
+            gallery.add(item);
+            index = gallery.indexOf(file);
+        }
+        final GalleryItem item = gallery.seek(index);
+        span.size(item.getSize());
+        render(item);
+        refreshDirectory();
+        span.detail("reopen").end();
+    }
+
+    /**
+     * <p>Brings the gallery up to date with its directory, without rescanning it.</p>
+     *
+     * <p>On an I/O thread, the directory's modification time is compared with the one from when it was last listed.
+     * Creating, deleting or renaming a file changes it, so if it hasn't changed, nothing more is done.  Otherwise
+     * only the names are listed (with no per-file stat calls), and back on the JavaFX thread they are diffed
+     * against the gallery's hash index: items whose files are gone are removed in one batch, and only the new names
+     * with a supported extension (other than files of culled items still waiting to be moved) are classified, on
+     * the I/O pool, and published like a scan.  Does nothing while the directory's first scan is still running,
+     * since that will pick up everything anyway.</p>
+     */
+    private void refreshDirectory() {
+        final long known = galleryDirectoryModified;
+        if (galleryDirectory == null || known < 0) return;
+        final long generation = loadGeneration;
+        final File directory = galleryDirectory;
+        scheduler.submitIo(TaskScheduler.Priority.NEAR_PREFETCH, directory, () -> {
+            final Trace.Span span = Trace.begin(Trace.Stage.SCAN).path(directory);
+            final long modified = directory.lastModified();
+            if (modified == known) {
+                span.cacheHit(true).detail("unchanged").end();
+                return null;
+            }
+            final String[] names = directory.list();
+            span.detail(names == null ? "unreadable" : names.length + " names listed").end();
+            if (names != null) {
+                Platform.runLater(() -> reconcileDirectory(directory, modified, names, generation));
+            }
+            return null;
+        }).exceptionally(error -> {
+            error.printStackTrace();
+            return null;
+        });
+    }
+
+    /**
+     * Applies a fresh listing of the gallery's directory (see {@link #refreshDirectory()}).
+     *
+     * @param directory
+     * @param modified the directory's modification time, read before it was listed
+     * @param names
+     * @param generation
+     */
+    private void reconcileDirectory(final File directory, final long modified, final String[] names, final long generation) {
+        if (generation != loadGeneration) return;
+        final boolean[] listed = new boolean[gallery.size()];
+        final List<File> added = new ArrayList<>();
+        for (final String name : names) {
+            final File file = new File(directory, name);
+            final int index = gallery.indexOf(file);
+            if (index >= 0) {
+                listed[index] = true;
+            } else if (GalleryItem.hasMediaExtension(file) && !culler.isPending(file)) {
+                // A culled item's file stays in the directory until its move has run, so it isn't new
+                added.add(file);
+            }
+        }
+        galleryDirectoryModified = modified;
+
+        final File current = gallery.isEmpty() ? null : gallery.get(gallery.position()).getItem();
+        final int removed = gallery.removeAll(IntStream.range(0, listed.length).filter(index -> !listed[index]).toArray());
+        if (removed > 0 && (current == null || gallery.indexOf(current) < 0)) {
+            renderAfterRemoval();
+        } else if (removed > 0) {
+            syncScrubber();
+        }
+
+        for (int start = 0; start < added.size(); start += SCAN_BATCH_SIZE) {
+            final List<File> chunk = added.subList(start, Math.min(added.size(), start + SCAN_BATCH_SIZE));
+            scheduler.submitIo(TaskScheduler.Priority.NEAR_PREFETCH, directory, () -> {
+                final List<GalleryItem> batch = new ArrayList<>(chunk.size());
+                for (final File file : chunk) {
+                    final GalleryItem item = GalleryItem.create(file);
+                    if (item != null) batch.add(item);
+                }
+                publishScanBatch(batch, generation);
+                return null;
+            }).exceptionally(error -> {
+                error.printStackTrace();
+                return null;
+            });
+        }
     }
 
     /**
-     * <p>Finds all files in the same directory as the parameter item.  The parameter file will be positioned as
-     * the first element in the resulting list.  If the parameter file is null, then a non-null empty list will
-     * be returned.</p>
+     * <p>Builds an ad-hoc gallery from a set of files and folders, i.e. a multiple selection dropped onto the
+     * window.  Each folder contributes the supported files directly inside it.  Archives are skipped, since a
+     * gallery can't mix archive entries with plain files.</p>
      *
-     * <p>Note that the returned list will contain <code>null</code> elements for the files that are not supported
-     * media items.  The application relies upon the {@link Gallery} methods stripping out <code>null</code>'s.</p>
+     * <p>The first dropped file with a supported name is classified and rendered straight away.  Everything else is
+     * classified in bulk on the {@link TaskScheduler}'s I/O pool: the remaining files in chunks of
+     * {@link #SCAN_BATCH_SIZE}, with one attribute read each, and every folder in its own task, so that several
+     * folders are listed in parallel (up to the scheduler's per-device limit).  Items stream into the gallery in
+     * batches as each task proceeds, in no particular order across tasks.  If nothing was rendered up front (e.g.
+     * only folders were dropped), the first batch to arrive is.</p>
+     *
+     * @param files
+     */
+    void loadFiles(final List<File> files) {
+        final Trace.Span span = Trace.begin(Trace.Stage.LOAD).detail(files.size() + " dropped");
+        if (!files.isEmpty()) span.path(files.get(0));
+        gallery.clear();
+        renderedItem = null;
+        loadGeneration++;
+        culler.reset();
+        galleryDirectory = null;
+        closeGalleryArchive();
+        final long generation = loadGeneration;
+
+        int first = 0;
+        if (!files.isEmpty() && GalleryItem.hasMediaExtension(files.get(0))) {
+            final GalleryItem item = GalleryItem.create(files.get(0));
+            if (item != null) {
+                gallery.add(item);
+                render(item);
+            }
+            first = 1;
+        }
+        for (int start = first; start < files.size(); start += SCAN_BATCH_SIZE) {
+            final List<File> chunk = files.subList(start, Math.min(files.size(), start + SCAN_BATCH_SIZE));
+            scheduler.submitIo(TaskScheduler.Priority.NEAR_PREFETCH, chunk.get(0), () -> {
+                classifyDropped(chunk, generation);
+                return null;
+            }).exceptionally(error -> {
+                error.printStackTrace();
+                return null;
+            });
+        }
+        span.end();
+    }
+
+    /**
+     * Classifies a chunk of dropped files on an I/O thread, publishing the supported ones and queuing each folder to
+     * be expanded by {@link #expandFolder(File, long)}.
+     *
+     * @param files
+     * @param generation
+     */
+    private void classifyDropped(final List<File> files, final long generation) {
+        final Trace.Span span = Trace.begin(Trace.Stage.SCAN).path(files.get(0)).detail(files.size() + " dropped files");
+        final List<GalleryItem> batch = new ArrayList<>(files.size());
+        for (final File file : files) {
+            final BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            } catch (IOException | InvalidPathException e) {
+                continue;
+            }
+            if (attributes.isDirectory()) {
+                scheduler.submitIo(TaskScheduler.Priority.NEAR_PREFETCH, file, () -> {
+                    expandFolder(file, generation);
+                    return null;
+                }).exceptionally(error -> {
+                    error.printStackTrace();
+                    return null;
+                });
+            } else {
+                final GalleryItem item = GalleryItem.create(file, attributes);
+                if (item != null) batch.add(item);
+            }
+        }
+        publishScanBatch(batch, generation);
+        span.end();
+    }
+
+    /**
+     * Lists a dropped folder on an I/O thread, publishing its supported files in batches.  The directory walk
+     * supplies each entry's attributes, so classification needs no further stat calls where the platform can avoid
+     * them.
+     *
+     * @param folder
+     * @param generation
+     * @throws IOException
+     */
+    private void expandFolder(final File folder, final long generation) throws IOException {
+        final Trace.Span span = Trace.begin(Trace.Stage.SCAN).path(folder);
+        final List<GalleryItem> batch = new ArrayList<>(SCAN_BATCH_SIZE);
+        final int[] found = { 0 };
+        Files.walkFileTree(folder.toPath(), EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                final GalleryItem item = GalleryItem.create(file.toFile(), attributes);
+                if (item == null) return FileVisitResult.CONTINUE;
+                batch.add(item);
+                found[0]++;
+                if (batch.size() == SCAN_BATCH_SIZE) {
+                    publishScanBatch(new ArrayList<>(batch), generation);
+                    batch.clear();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        publishScanBatch(batch, generation);
+        span.detail(found[0] + " items").end();
+    }
+
+    /**
+     * <p>Populates the gallery with the supported entries of a ZIP or CBZ archive, in name order, and renders the
+     * first one.  Nothing is extracted.</p>
+     *
+     * <p>The archive is opened with {@link MediaFiles#openArchive(File)}, so that its central directory is read once
+     * and every entry's bytes are read through the same open file.  It is held in {@link #galleryArchive} until the
+     * gallery is cleared or replaced, and closed then by {@link #closeGalleryArchive()}, so that the archive can be
+     * moved or deleted once it is no longer shown.  Video entries are still opened by {@link Media} itself, through
+     * their <code>jar:</code> URLs.</p>
+     *
+     * @param archive
+     */
+    private void loadArchive(final File archive) {
+        final long generation = loadGeneration;
+        scheduler.submitIo(TaskScheduler.Priority.VISIBLE, archive, () -> {
+            final Trace.Span span = Trace.begin(Trace.Stage.SCAN).path(archive).size(archive.length());
+            final ZipFile zipFile = MediaFiles.openArchive(archive);
+            final List<GalleryItem> items = zipFile.stream()
+                    .map(entry -> GalleryItem.create(archive, entry))
+                    .filter(Objects::nonNull)
+                    .sorted(Comparator.comparing(GalleryItem::getEntryName))
+                    .collect(Collectors.toList());
+            span.detail(zipFile.size() + " entries, " + items.size() + " items").end();
+            return new AbstractMap.SimpleImmutableEntry<>(zipFile, items);
+        }).whenCompleteAsync((opened, error) -> {
+            if (error != null) {
+                error.printStackTrace();
+                return;
+            }
+            if (generation != loadGeneration) {
+                // Another load has replaced the gallery while the archive was being listed
+                MediaFiles.closeArchive(opened.getKey());
+                return;
+            }
+            galleryArchive = opened.getKey();
+            gallery.addAll(opened.getValue());
+            render(gallery.first());
+            syncScrubber();
+        }, Platform::runLater);
+    }
+
+    /**
+     * Closes the archive that the gallery was populated from, if any, on the {@link TaskScheduler}'s I/O pool.
+     * Called whenever the gallery is cleared, since none of the archive's entries can be shown after that.
+     */
+    private void closeGalleryArchive() {
+        if (galleryArchive == null) return;
+        final ZipFile closing = galleryArchive;
+        galleryArchive = null;
+        scheduler.submitIo(TaskScheduler.Priority.BULK, new File(closing.getName()), () -> {
+            MediaFiles.closeArchive(closing);
+            return null;
+        });
+    }
+
+    /**
+     * <p>Finds all supported files in the same directory as the parameter item, and appends them to the gallery.</p>
+     *
+     * <p>The directory is scanned on the {@link TaskScheduler}'s I/O pool, as near prefetch so it never holds up
+     * the read of the item on screen.  Supported files are handed to the JavaFX thread in batches as the scan
+     * proceeds, so the gallery becomes navigable long before a huge directory has been fully classified.  If
+     * another file is loaded in the meantime, the remaining batches are dropped.</p>
      *
      * @param item
-     * @return
      */
-    private List<GalleryItem> findSiblingItems(final GalleryItem item) {
-        final List<GalleryItem> returnValue = new ArrayList<>(Arrays.asList(item));
-        if (item == null) return returnValue;
-        returnValue.addAll(
-            Arrays.stream(item.getItem().getParentFile().listFiles())
-                .filter(sibling -> item.getItem().isFile() && !item.getItem().equals(sibling))
-                .map(GalleryItem::create)
-                .collect(Collectors.toList())
-        );
-        return returnValue;
+    private void findSiblingItems(final GalleryItem item) {
+        final long generation = loadGeneration;
+        final File directory = item.getItem().getParentFile();
+        scheduler.submitIo(TaskScheduler.Priority.NEAR_PREFETCH, directory, () -> {
+            final Trace.Span span = Trace.begin(Trace.Stage.SCAN).path(directory);
+            // Read before listing, so that a change made during the scan is still picked up by the next refresh
+            final long modified = directory.lastModified();
+            final File[] siblings = directory.listFiles();
+            if (siblings == null) {
+                span.detail("unreadable").end();
+                return null;
+            }
+            int found = 1;
+            List<GalleryItem> batch = new ArrayList<>(SCAN_BATCH_SIZE);
+            for (final File sibling : siblings) {
+                if (sibling.equals(item.getItem())) continue;
+                final GalleryItem siblingItem = GalleryItem.create(sibling);
+                if (siblingItem != null) {
+                    batch.add(siblingItem);
+                    found++;
+                }
+                if (batch.size() == SCAN_BATCH_SIZE) {
+                    publishScanBatch(batch, generation);
+                    batch = new ArrayList<>(SCAN_BATCH_SIZE);
+                }
+            }
+            publishScanBatch(batch, generation);
+            Platform.runLater(() -> {
+                if (generation == loadGeneration) galleryDirectoryModified = modified;
+            });
+            span.detail(siblings.length + " files, " + found + " items").end();
+            return null;
+        }).exceptionally(error -> {
+            error.printStackTrace();
+            return null;
+        });
+    }
+
+    /**
+     * Hands a batch of scanned items over to the JavaFX thread, unless a newer load has started since.  The first
+     * batch into an empty gallery is rendered.
+     *
+     * @param batch
+     * @param generation
+     */
+    private void publishScanBatch(final List<GalleryItem> batch, final long generation) {
+        Platform.runLater(() -> {
+            if (generation != loadGeneration) return;
+            final boolean wasEmpty = gallery.isEmpty();
+            gallery.addAll(batch);
+            if (wasEmpty && !gallery.isEmpty()) {
+                render(gallery.first());
+            } else {
+                syncScrubber();
+            }
+        });
     }
 
     /**
@@ -313,46 +1088,258 @@ public class Controller implements Initializable {
      */
     private void render(final GalleryItem item) {
         if (item == null) return;
-        stage.setTitle("MediaGallery - " + item.getItem().getName());
+        releaseCurrent(item);
+
+        if (compareView != null) {
+            renderCompare();
+        } else if (item.isImage()) {
+            renderImage(item);
+        } else if (item.isVideo()) {
+            renderVideo(item);
+        }
+        // Navigating by hand during a slideshow restarts its clock, or for a video, holds it until the video ends
+        slideshow.showing(mediaControl);
+    }
 
-        if (content.getChildren().size() > 0 && content.getChildren().get(0) instanceof ImageView) {
+    /**
+     * Renders a slide that {@link Slideshow} has already decoded (for images) or pre-rolled (for videos).  Videos
+     * always play straight through once, and then hand control back to the slideshow.
+     *
+     * @param slide
+     */
+    private void renderSlide(final Slideshow.Slide slide) {
+        releaseCurrent(slide.getItem());
+        // The slideshow prepares each slide ahead of time
+        renderSpan.cacheHit(true).detail("slideshow");
+
+        if (slide.getImage() != null) {
+            renderImage(slide.getItem(), slide.getImage());
+        } else {
+            slideshow.showing(renderVideo(slide.getMediaPlayer(), false));
+            slide.getMediaPlayer().play();
+        }
+    }
+
+    /**
+     * Updates the title bar for a newly-selected item (including the duration, dimensions and codecs of videos) and
+     * the scrubber position, and releases whatever is currently rendered in the main content area.  Video details
+     * come from a header-only probe, run on the I/O pool and added to the title once known.
+     *
+     * @param item
+     */
+    private void releaseCurrent(final GalleryItem item) {
+        renderGeneration++;
+        renderedItem = null;
+        if (renderSpan != null) renderSpan.detail("superseded").end();
+        renderSpan = Trace.begin(Trace.Stage.RENDER).path(item.getItem()).size(item.getSize());
+        syncScrubber();
+        culler.show(item);
+        final String title = "MediaGallery - " + item.getItem().getName();
+        stage.setTitle(title);
+        if (item.isVideo() && !item.isArchiveEntry()) {
+            final long generation = renderGeneration;
+            scheduler.submitIo(TaskScheduler.Priority.VISIBLE, item.getItem(), () -> MediaProbe.probe(item.getItem()))
+                    .whenCompleteAsync((mediaInfo, error) -> {
+                        if (error != null) error.printStackTrace();
+                        if (generation != renderGeneration || mediaInfo == null || mediaInfo.toString().isEmpty()) return;
+                        stage.setTitle(title + " (" + mediaInfo + ")");
+                    }, Platform::runLater);
+        }
+
+        if (content.getChildren().size() > 0
+                && (content.getChildren().get(0) instanceof ImageView || content.getChildren().get(0) instanceof CompareView)) {
             // Stop the status bar slider from resizing any previous image (this will be a no-op if there is no
             // existing listener)
             sizeSlider.valueProperty().removeListener(sizeSliderListener);
-
-        } else if (content.getChildren().size() > 0 && content.getChildren().get(0) instanceof MediaControl) {
-            // If the currently rendered item is a video, stop its player before proceeding
-            final MediaControl previousMediaControl = (MediaControl) content.getChildren().get(0);
-            previousMediaControl.getMediaPlayer().dispose();
         }
+        // If the currently rendered item is a video, stop its player before proceeding.  The image on screen (if
+        // any) stays there until the new item is ready to take its place.
+        disposeVideo();
+    }
 
-        if (item.isImage()) {
-            renderImage(item.getItem());
-        } else if (item.isVideo()) {
-            renderVideo(item.getItem());
+    /**
+     * Disposes of the video on screen, if there is one, even if it has been moved out of the content area into its
+     * full-screen stage.
+     */
+    private void disposeVideo() {
+        if (mediaControl != null) {
+            mediaControl.dispose();
+            mediaControl = null;
         }
     }
 
     /**
-     * Renders a given gallery item as an image.
+     * Gives up the references held on whatever is on screen: disposing of the video's player (and closing its
+     * full-screen stage), and releasing the image.
+     */
+    private void releaseRendered() {
+        disposeVideo();
+        resourceTracker.release(renderedImage, this);
+        renderedImage = null;
+        renderedItem = null;
+    }
+
+    /**
+     * <p>Renders a given gallery item as an image.</p>
+     *
+     * <p>The file is read on the {@link TaskScheduler}'s I/O pool and decoded on its CPU pool, both at
+     * {@link TaskScheduler.Priority#VISIBLE} priority, and the result is placed on screen back on the JavaFX thread.
+     * The previous item stays on screen until then.  If another item has been rendered in the meantime (e.g. the
+     * arrow key is being held down), the stale read is cancelled if it hasn't started, and otherwise its result is
+     * dropped without being decoded.</p>
+     *
+     * <p>Full-resolution decodes are kept in the shared {@link DecodedImageCache}, so flipping back to an item
+     * shown recently (or in the compare view) puts it on screen without any read or decode.</p>
      *
      * @param item
      */
-    private void renderImage(final File item) {
-        try {
-            final String imageURL = item.toURI().toURL().toExternalForm();
-            final ImageView imageView = new ImageView(new Image(imageURL));
-            imageView.setPreserveRatio(true);
-            imageView.fitWidthProperty().bind(content.widthProperty());
-            imageView.fitHeightProperty().bind(content.heightProperty());
-            content.getChildren().clear();
-            content.getChildren().add(imageView);
-            sizeButton.setDisable(false);
-            sizeSlider.setDisable(false);
-            sizeSlider.valueProperty().addListener(sizeSliderListener);
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
+    private void renderImage(final GalleryItem item) {
+        final long generation = renderGeneration;
+        final double width = content.getWidth();
+        final double height = content.getHeight();
+        if (pendingImageRead != null) pendingImageRead.cancel(false);
+
+        // Flipping back to a recently shown item needs no decode at all, and one still being decoded (e.g. for the
+        // compare view) is joined rather than decoded again
+        final CompletableFuture<Image> cached = imageCache.get(item);
+        if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+            if (renderSpan != null) renderSpan.cacheHit(true);
+            renderImage(item, cached.join());
+            return;
+        }
+        final CompletableFuture<Image> decoded;
+        if (cached != null) {
+            decoded = cached;
+        } else {
+            final CompletableFuture<ByteBuffer> read = scheduler.submitIo(TaskScheduler.Priority.VISIBLE, item.getSourceFile(), () -> MediaFiles.read(item));
+            pendingImageRead = read;
+            // The header is parsed for the decoded size on the CPU pool, so only the reservation itself (which may
+            // evict caches) happens on the JavaFX thread
+            decoded = read
+                    .thenCompose(data -> scheduler.submitCpu(TaskScheduler.Priority.VISIBLE, () -> ImageDecoders.decodedSize(data)))
+                    .thenComposeAsync(size -> {
+                        if (generation != renderGeneration) throw new CancellationException();
+                        final ByteBuffer data = read.join();
+                        // If the heap can't hold the full-resolution decode even after evicting caches, decode at
+                        // window size rather than risk an OutOfMemoryError.  Only full-resolution decodes are cached.
+                        final boolean fits = memoryGovernor.reserve(size) || width <= 0 || height <= 0;
+                        if (!fits) return scheduler.submitCpu(TaskScheduler.Priority.VISIBLE, () -> ImageDecoders.decode(data, width, height));
+                        final CompletableFuture<Image> decode = scheduler.submitCpu(TaskScheduler.Priority.VISIBLE, () -> ImageDecoders.decode(data));
+                        imageCache.put(item, decode);
+                        return decode;
+                    }, Platform::runLater);
+        }
+        decoded.whenCompleteAsync((image, error) -> {
+            if (generation != renderGeneration) return;
+            if (error != null) {
+                error.printStackTrace();
+                return;
+            }
+            renderImage(item, image);
+        }, Platform::runLater);
+    }
+
+    /**
+     * <p>Fills the compare view with the item under the gallery cursor and the ones after it.  Images come from the
+     * shared {@link DecodedImageCache}, so stepping through a burst one item at a time only ever decodes the item
+     * newly brought into view.  Videos are shown by name only.</p>
+     *
+     * <p>The compare view itself is kept from one render to the next, so the zoom and pan carry over.</p>
+     */
+    private void renderCompare() {
+        final long generation = renderGeneration;
+        final int position = gallery.position();
+        if (content.getChildren().size() != 1 || content.getChildren().get(0) != compareView) {
+            releaseRendered();
+            content.getChildren().setAll(compareView);
         }
+        sizeButton.setDisable(false);
+        sizeSlider.setDisable(false);
+        sizeSlider.valueProperty().addListener(sizeSliderListener);
+
+        final int columns = 2;
+        final int rows = (compareView.getCount() + columns - 1) / columns;
+        for (int slot = 0; slot < compareView.getCount(); slot++) {
+            final int index = position + slot;
+            if (index >= gallery.size()) {
+                compareView.show(slot, null, null);
+                continue;
+            }
+            final GalleryItem item = gallery.get(index);
+            final String name = item.getItem().getName();
+            if (!item.isImage()) {
+                compareView.show(slot, name + " (video)", null);
+                if (slot == 0) finishCompareRender(false);
+                continue;
+            }
+            final int target = slot;
+            // Under memory pressure, each pane falls back to a decode at its own size
+            final CompletableFuture<Image> image = imageCache.load(item, content.getWidth() / columns, content.getHeight() / rows);
+            final boolean cacheHit = image.isDone();
+            image.whenCompleteAsync((decoded, error) -> {
+                if (generation != renderGeneration) return;
+                if (error != null) {
+                    error.printStackTrace();
+                    compareView.show(target, name, null);
+                } else {
+                    compareView.show(target, name, decoded);
+                }
+                if (target == 0) finishCompareRender(cacheHit);
+            }, Platform::runLater);
+        }
+    }
+
+    /**
+     * Called once the first pane of the compare view is filled, which counts as the render being on screen.
+     *
+     * @param cacheHit
+     */
+    private void finishCompareRender(final boolean cacheHit) {
+        if (renderSpan != null) {
+            renderSpan.cacheHit(cacheHit).detail("compare " + compareView.getCount() + "-up").end();
+            renderSpan = null;
+        }
+        if (onRendered != null) onRendered.run();
+    }
+
+    /**
+     * Switches between the single-item view and a compare view, and re-renders the item under the gallery cursor.
+     *
+     * @param count the number of items to show side by side, or <code>0</code> for the single-item view
+     */
+    private void setCompare(final int count) {
+        optionsCompare2.setSelected(count == 2);
+        optionsCompare4.setSelected(count == 4);
+        compareView = count > 0 ? new CompareView(count) : null;
+        if (!fitsize && compareView != null) compareView.zoom(1 + (sizeSlider.getValue() / 100));
+        if (!gallery.isEmpty()) render(gallery.get(gallery.position()));
+        content.requestFocus();
+    }
+
+    /**
+     * Places an already-loaded image into the main content area, sized to fit.
+     *
+     * @param item the item the image was loaded from
+     * @param image
+     */
+    private void renderImage(final GalleryItem item, final Image image) {
+        resourceTracker.release(renderedImage, this);
+        renderedImage = resourceTracker.track(image, this);
+        renderedItem = item;
+        final ImageView imageView = new ImageView(image);
+        imageView.setPreserveRatio(true);
+        imageView.fitWidthProperty().bind(content.widthProperty());
+        imageView.fitHeightProperty().bind(content.heightProperty());
+        content.getChildren().clear();
+        content.getChildren().add(imageView);
+        sizeButton.setDisable(false);
+        sizeSlider.setDisable(false);
+        sizeSlider.valueProperty().addListener(sizeSliderListener);
+        if (renderSpan != null) {
+            renderSpan.dimensions(image.getWidth(), image.getHeight()).end();
+            renderSpan = null;
+        }
+        if (onRendered != null) onRendered.run();
     }
 
     /**
@@ -360,19 +1347,45 @@ public class Controller implements Initializable {
      *
      * @param item
      */
-    private void renderVideo(final File item) {
-        try {
-            final String videoURL = item.toURI().toURL().toExternalForm();
-            final MediaPlayer mediaPlayer = new MediaPlayer(new Media(videoURL));
-            mediaPlayer.setAutoPlay(optionsAutoplay.isSelected());
-            final MediaControl mediaControl = new MediaControl(mediaPlayer, optionsLoop.isSelected());
-            content.getChildren().clear();
-            content.getChildren().add(mediaControl);
-            sizeButton.setDisable(true);
-            sizeSlider.setDisable(true);
-        } catch (MalformedURLException e) {
-            e.printStackTrace();
+    private void renderVideo(final GalleryItem item) {
+        final MediaPlayer mediaPlayer = resourceTracker.openPlayer(item.getUrl(), this);
+        mediaPlayer.setAutoPlay(optionsAutoplay.isSelected());
+        renderVideo(mediaPlayer, optionsLoop.isSelected());
+        // The MediaControl holds its own reference by now
+        resourceTracker.release(mediaPlayer, this);
+    }
+
+    /**
+     * Places a media player, wrapped in a {@link MediaControl}, into the main content area.  The control takes its
+     * own reference to the player, so the caller should release any reference it holds afterwards.
+     *
+     * @param mediaPlayer
+     * @param repeat
+     * @return
+     */
+    private MediaControl renderVideo(final MediaPlayer mediaPlayer, final boolean repeat) {
+        releaseRendered();
+        mediaControl = new MediaControl(resourceTracker, mediaPlayer, repeat);
+        content.getChildren().clear();
+        content.getChildren().add(mediaControl);
+        sizeButton.setDisable(true);
+        sizeSlider.setDisable(true);
+        if (renderSpan != null) {
+            // How long the player then takes to open the media is traced by MediaControl
+            renderSpan.detail("video").end();
+            renderSpan = null;
+        }
+        if (onRendered != null) {
+            // A player shows nothing until its media has been opened
+            if (mediaPlayer.getStatus() == MediaPlayer.Status.READY) {
+                onRendered.run();
+            } else {
+                mediaPlayer.statusProperty().addListener((observable, oldStatus, newStatus) -> {
+                    if (newStatus == MediaPlayer.Status.READY && oldStatus == MediaPlayer.Status.UNKNOWN) onRendered.run();
+                });
+            }
         }
+        return mediaControl;
     }
 
     /**
@@ -390,7 +1403,17 @@ public class Controller implements Initializable {
         // Validate that the main content area contains an ImageView, either directly or nested within scrollbars
         if (content.getChildren().size() < 1) return;
         final Node contentNode = content.getChildren().get(0);
-        if (!(contentNode instanceof ImageView) && !(contentNode instanceof ScrollPane)) return;
+        if (!(contentNode instanceof ImageView) && !(contentNode instanceof ScrollPane) && !(contentNode instanceof CompareView)) return;
+        final Trace.Span span = Trace.begin(Trace.Stage.RESIZE).detail("ratio " + ratio);
+        if (!gallery.isEmpty()) span.path(gallery.get(gallery.position()).getItem());
+
+        // Every pane of a compare view zooms by the same ratio, and they share one scroll position
+        if (contentNode instanceof CompareView) {
+            ((CompareView) contentNode).zoom(ratio);
+            fitsize = false;
+            span.detail("ratio " + ratio + ", compare").end();
+            return;
+        }
 
         // Clear the current main content area and ImageView settings
         ImageView imageView;
@@ -424,6 +1447,7 @@ public class Controller implements Initializable {
             content.getChildren().add(imageView);
         }
         fitsize = false;
+        span.dimensions(imageWidth, imageHeight).end();
     }
 
     /**
@@ -436,6 +1460,24 @@ public class Controller implements Initializable {
         this.stage = stage;
     }
 
+    Gallery getGallery() {
+        return gallery;
+    }
+
+    Culler getCuller() {
+        return culler;
+    }
+
+    /**
+     * Registers a callback for whenever a new item has been placed in the main content area: an image once it has
+     * been decoded, or a video once its player is ready.  Used by the render latency harness.
+     *
+     * @param onRendered
+     */
+    void setOnRendered(final Runnable onRendered) {
+        this.onRendered = onRendered;
+    }
+
     /**
      * Allows {@link Main#start(Stage)} to inject the arguments originally passed at application invocation,
      * so that {@link this#initialize(URL, ResourceBundle)} can determine if a filename to load was passed
@@ -0,0 +1,407 @@
+package com.steveperkins.mediagallery;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.util.Duration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Keyboard-driven triage of a {@link Gallery}: flagging keepers, rejecting items, and moving items to another
+ * folder, all with undo.</p>
+ *
+ * <p>Every action takes effect in the gallery immediately, so the next item can be shown straight away.  The file
+ * operations behind them are queued, and run in batches on the {@link TaskScheduler}'s I/O pool at
+ * {@link TaskScheduler.Priority#BULK} priority, one batch at a time and in the order they were queued.  So a slow
+ * network share never holds up navigation, and reads for the items being viewed always go first.  If a file
+ * operation fails, its item is put back into the gallery where it was.</p>
+ *
+ * <p>Undoing an action whose file operation hasn't started yet just cancels it, and puts the item back straight
+ * away.  Otherwise, the reverse operation is queued behind it and flushed without waiting for more keystrokes, and
+ * the item only goes back into the gallery once its file is back where it was, so that it is never shown (and read)
+ * from a path it hasn't reached yet.</p>
+ *
+ * <p>Rejected items are moved into a {@link #TRASH_DIRECTORY} folder beside them, rather than to the desktop's
+ * trash, since Java offers no way to restore files from the desktop trash (which would rule out undo).  Flags are
+ * only kept in memory, for the life of the application.</p>
+ *
+ * <p>Like the gallery itself, this class is only touched from the JavaFX application thread.</p>
+ */
+public class Culler {
+
+    public static final String TRASH_DIRECTORY = ".trash";
+
+    private static final int BATCH_SIZE = 32;
+    private static final Duration BATCH_DELAY = Duration.millis(500);
+    private static final int UNDO_LIMIT = 1000;
+
+    /**
+     * A queued file move.  The state is shared with the I/O thread running the batch, so that undo can cancel a
+     * move that hasn't started yet.
+     */
+    private static class Operation {
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int CANCELLED = 3;
+        private static final int FAILED = 4;
+
+        private final File source;
+        private final File targetDirectory;
+        private final Operation undoes;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        /** Where the file ended up, once the move is done. */
+        private volatile File target;
+        /** Completed on the JavaFX thread once the batch holding this operation has finished, whatever its state. */
+        private final CompletableFuture<Operation> completion = new CompletableFuture<>();
+
+        private Operation(final File source, final File targetDirectory) {
+            this.source = source;
+            this.targetDirectory = targetDirectory;
+            this.undoes = null;
+        }
+
+        /**
+         * An operation that moves a file back to where another operation moved it from.
+         */
+        private Operation(final Operation undoes) {
+            this.source = undoes.source;
+            this.targetDirectory = undoes.source.getParentFile();
+            this.undoes = undoes;
+        }
+
+        private void run() throws IOException {
+            // Batches run in order, so the move being undone has finished by now.  If it never happened, there is
+            // nothing to move back.
+            if (undoes != null && undoes.state.get() != DONE) return;
+            final File from = undoes == null ? source : undoes.target;
+            final File to = undoes == null ? unusedName(targetDirectory, source.getName()) : source;
+            Files.createDirectories(targetDirectory.toPath());
+            Files.move(from.toPath(), to.toPath());
+            target = to;
+        }
+
+        /**
+         * A file in a directory with the given name, or with a " (2)", " (3)", etc. suffix if that is taken.
+         */
+        private static File unusedName(final File directory, final String name) {
+            File file = new File(directory, name);
+            final int dot = name.lastIndexOf('.');
+            final String base = dot > 0 ? name.substring(0, dot) : name;
+            final String extension = dot > 0 ? name.substring(dot) : "";
+            for (int suffix = 2; file.exists(); suffix++) {
+                file = new File(directory, base + " (" + suffix + ")" + extension);
+            }
+            return file;
+        }
+    }
+
+    /**
+     * An entry on the undo stack.
+     */
+    private static class Action {
+        private final GalleryItem item;
+        private final int position;
+        private final boolean wasFlagged;
+        /** The file move, or <code>null</code> if this action was a flag toggle. */
+        private final Operation operation;
+
+        private Action(final GalleryItem item, final int position, final boolean wasFlagged, final Operation operation) {
+            this.item = item;
+            this.position = position;
+            this.wasFlagged = wasFlagged;
+            this.operation = operation;
+        }
+    }
+
+    private final Gallery gallery;
+    private final TaskScheduler scheduler;
+    private final Set<File> flagged = new HashSet<>();
+    private final Deque<Action> undoStack = new ArrayDeque<>();
+    private final List<Operation> queue = new ArrayList<>();
+    /** The batch handed to the I/O pool, until it has finished. */
+    private List<Operation> runningBatch = new ArrayList<>();
+    private final PauseTransition batchTimer = new PauseTransition(BATCH_DELAY);
+    private final ReadOnlyStringWrapper statusProperty = new ReadOnlyStringWrapper("");
+
+    private boolean enabled = false;
+    /** Incremented by {@link #reset()}, so that an undo finishing afterwards leaves the new gallery alone. */
+    private long generation = 0;
+    private GalleryItem current;
+    private int running = 0;
+    private int failed = 0;
+
+    public Culler(final Gallery gallery, final TaskScheduler scheduler) {
+        this.gallery = gallery;
+        this.scheduler = scheduler;
+        batchTimer.setOnFinished(event -> flush());
+    }
+
+    /**
+     * Turns culling mode on or off.  File operations already queued carry on regardless.
+     *
+     * @param enabled
+     */
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+        updateStatus();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Tells the culler which item is on screen, so the status can show whether it is flagged.
+     *
+     * @param item
+     */
+    public void show(final GalleryItem item) {
+        this.current = item;
+        updateStatus();
+    }
+
+    public boolean isFlagged(final GalleryItem item) {
+        return item != null && flagged.contains(item.getItem());
+    }
+
+    /**
+     * Flags the item under the gallery cursor, or clears its flag.
+     *
+     * @return <code>false</code> if the gallery is empty
+     */
+    public boolean toggleFlag() {
+        if (gallery.isEmpty()) return false;
+        final GalleryItem item = gallery.get(gallery.position());
+        final boolean wasFlagged = flagged.contains(item.getItem());
+        if (wasFlagged) {
+            flagged.remove(item.getItem());
+        } else {
+            flagged.add(item.getItem());
+        }
+        pushUndo(new Action(item, gallery.position(), wasFlagged, null));
+        updateStatus();
+        return true;
+    }
+
+    /**
+     * Removes the item under the gallery cursor, and queues it to be moved into the {@link #TRASH_DIRECTORY} folder
+     * beside it.
+     *
+     * @return <code>false</code> if the gallery is empty, or the item can't be moved (i.e. it's inside an archive)
+     */
+    public boolean reject() {
+        if (gallery.isEmpty()) return false;
+        final GalleryItem item = gallery.get(gallery.position());
+        return move(new File(item.getItem().getParentFile(), TRASH_DIRECTORY));
+    }
+
+    /**
+     * Removes the item under the gallery cursor, and queues it to be moved into another folder.
+     *
+     * @param folder
+     * @return <code>false</code> if the gallery is empty, or the item can't be moved (i.e. it's inside an archive)
+     */
+    public boolean move(final File folder) {
+        if (gallery.isEmpty()) return false;
+        final int position = gallery.position();
+        final GalleryItem item = gallery.get(position);
+        if (item.isArchiveEntry()) return false;
+        final boolean wasFlagged = flagged.remove(item.getItem());
+        gallery.remove(position);
+
+        final Operation operation = new Operation(item.getItem(), folder);
+        pushUndo(new Action(item, position, wasFlagged, operation));
+        enqueue(operation);
+        return true;
+    }
+
+    /**
+     * Whether a file has a move queued or under way, i.e. its item has been removed from the gallery, but the file
+     * may still be in its directory for a while yet.
+     *
+     * @param file
+     * @return
+     */
+    public boolean isPending(final File file) {
+        for (final List<Operation> operations : Arrays.asList(queue, runningBatch)) {
+            for (final Operation operation : operations) {
+                final int state = operation.state.get();
+                if ((state == Operation.PENDING || state == Operation.RUNNING) && operation.source.equals(file)) return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    /**
+     * <p>Reverts the most recent action: a flag is toggled back, and a removed item is put back into the gallery
+     * where it was, with its file operation either cancelled or reversed.</p>
+     *
+     * <p>If the file has already been moved (or is being moved), the item is only put back once the reverse move has
+     * finished.  If the reverse move fails, the item stays out of the gallery, and the result is <code>-1</code>.</p>
+     *
+     * @return the gallery position of the item affected, or <code>-1</code> if there was nothing to undo,
+     * completed on the JavaFX thread
+     */
+    public CompletableFuture<Integer> undo() {
+        final Action action = undoStack.pollFirst();
+        if (action == null) return CompletableFuture.completedFuture(-1);
+        if (action.wasFlagged) {
+            flagged.add(action.item.getItem());
+        } else {
+            flagged.remove(action.item.getItem());
+        }
+        if (action.operation == null) {
+            updateStatus();
+            return CompletableFuture.completedFuture(gallery.indexOf(action.item.getItem()));
+        }
+
+        if (action.operation.state.compareAndSet(Operation.PENDING, Operation.CANCELLED)) {
+            updateStatus();
+            return CompletableFuture.completedFuture(reinsert(action));
+        }
+        final Operation reverse = new Operation(action.operation);
+        final long undoGeneration = generation;
+        queue.add(reverse);
+        flush();
+        updateStatus();
+        return reverse.completion.thenApply(operation -> {
+            if (undoGeneration != generation || operation.state.get() != Operation.DONE) return -1;
+            return reinsert(action);
+        });
+    }
+
+    /**
+     * Puts the item of an undone move back into the gallery where it was.
+     *
+     * @param action
+     * @return the item's gallery position
+     */
+    private int reinsert(final Action action) {
+        final int position = gallery.insert(action.position, action.item);
+        return position >= 0 ? position : gallery.indexOf(action.item.getItem());
+    }
+
+    /**
+     * Forgets the undo history, e.g. when a different gallery is loaded.  Queued file operations still run, but
+     * failures no longer put items back into the gallery.
+     */
+    public void reset() {
+        generation++;
+        undoStack.clear();
+        current = null;
+        updateStatus();
+    }
+
+    /**
+     * A short summary of culling mode for the status bar, e.g. "  |  Culling: flagged, 12 pending", or an empty
+     * string when culling mode is off and nothing is pending.
+     *
+     * @return
+     */
+    public ReadOnlyStringProperty statusProperty() {
+        return statusProperty.getReadOnlyProperty();
+    }
+
+    private void pushUndo(final Action action) {
+        undoStack.addFirst(action);
+        if (undoStack.size() > UNDO_LIMIT) undoStack.removeLast();
+    }
+
+    private void enqueue(final Operation operation) {
+        queue.add(operation);
+        if (queue.size() >= BATCH_SIZE) {
+            flush();
+        } else {
+            // Let a burst of keystrokes gather into one batch
+            batchTimer.playFromStart();
+        }
+        updateStatus();
+    }
+
+    /**
+     * Hands the queued operations to the I/O pool as one batch, unless a batch is already running (in which case
+     * this is called again when it finishes).
+     */
+    private void flush() {
+        batchTimer.stop();
+        if (running > 0 || queue.isEmpty()) return;
+        final List<Operation> batch = new ArrayList<>(queue);
+        queue.clear();
+        running = batch.size();
+        runningBatch = batch;
+        scheduler.submitIo(TaskScheduler.Priority.BULK, batch.get(0).targetDirectory, () -> {
+            for (final Operation operation : batch) {
+                if (!operation.state.compareAndSet(Operation.PENDING, Operation.RUNNING)) continue;
+                try {
+                    operation.run();
+                    operation.state.set(Operation.DONE);
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                    operation.state.set(Operation.FAILED);
+                }
+            }
+            return batch;
+        }).whenCompleteAsync((completed, error) -> {
+            running = 0;
+            runningBatch = new ArrayList<>();
+            if (error != null) error.printStackTrace();
+            for (final Operation operation : batch) {
+                if (operation.state.get() == Operation.FAILED) restore(operation);
+                operation.completion.complete(operation);
+            }
+            flush();
+            updateStatus();
+        }, Platform::runLater);
+    }
+
+    /**
+     * Puts the item of a failed move back into the gallery, and drops its action from the undo history.
+     *
+     * @param operation
+     */
+    private void restore(final Operation operation) {
+        failed++;
+        final Iterator<Action> actions = undoStack.iterator();
+        while (actions.hasNext()) {
+            final Action action = actions.next();
+            if (action.operation == operation) {
+                actions.remove();
+                gallery.insert(action.position, action.item);
+                if (action.wasFlagged) flagged.add(action.item.getItem());
+                return;
+            }
+        }
+    }
+
+    private void updateStatus() {
+        final int pending = queue.size() + running;
+        if (!enabled && pending == 0 && failed == 0) {
+            statusProperty.set("");
+            return;
+        }
+        final List<String> details = new ArrayList<>();
+        if (enabled && isFlagged(current)) details.add("flagged");
+        if (pending > 0) details.add(pending + " pending");
+        if (failed > 0) details.add(failed + " failed");
+        statusProperty.set("  |  Culling" + (details.isEmpty() ? "" : ": " + String.join(", ", details)));
+    }
+}
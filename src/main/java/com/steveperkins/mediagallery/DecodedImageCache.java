@@ -0,0 +1,195 @@
+package com.steveperkins.mediagallery;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * <p>Full-resolution decoded images, shared by every view that shows gallery items, so that flipping back and forth
+ * between items (or showing them side by side in a {@link CompareView}) never decodes the same one twice.</p>
+ *
+ * <p>Entries are futures, so a request for an item whose decode is still under way joins that decode rather than
+ * starting another.  Reads and decodes go through the {@link TaskScheduler}, at
+ * {@link TaskScheduler.Priority#VISIBLE} priority unless the caller is preparing ahead (i.e. the
+ * {@link Slideshow}).  A failed decode is dropped, so that it is retried next time.</p>
+ *
+ * <p>Before a full-resolution decode, its size is reserved with the {@link MemoryGovernor}, just as for the image on
+ * screen.  If the heap can't hold it, the item is decoded to fit a given size instead, and that smaller decode
+ * isn't cached.</p>
+ *
+ * <p>The cache keeps the most recently used images within a quarter of the maximum heap (but always at least the
+ * last {@link #MIN_ENTRIES}, enough for a 4-up comparison).  It is registered with the {@link MemoryGovernor} as
+ * {@link MemoryGovernor.Priority#CACHE}, so under memory pressure it is emptied before the image on screen is
+ * touched.  Each large decoded image holds a reference with the {@link ResourceTracker} for as long as it is
+ * cached.</p>
+ *
+ * <p>Like the gallery itself, this class is only touched from the JavaFX application thread.</p>
+ */
+public class DecodedImageCache {
+
+    private static final int MIN_ENTRIES = 4;
+
+    private final TaskScheduler scheduler;
+    private final MemoryGovernor memoryGovernor;
+    private final ResourceTracker resourceTracker;
+    private final Map<File, CompletableFuture<Image>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long budget = Runtime.getRuntime().maxMemory() / 4;
+
+    public DecodedImageCache(final TaskScheduler scheduler, final MemoryGovernor memoryGovernor,
+                             final ResourceTracker resourceTracker) {
+        this.scheduler = scheduler;
+        this.memoryGovernor = memoryGovernor;
+        this.resourceTracker = resourceTracker;
+        memoryGovernor.register("decoded images", MemoryGovernor.Priority.CACHE, new MemoryGovernor.Evictable() {
+            @Override
+            public long footprint() {
+                return DecodedImageCache.this.footprint();
+            }
+
+            @Override
+            public long evict(final long bytes) {
+                return DecodedImageCache.this.evict(bytes, 0);
+            }
+        });
+    }
+
+    /**
+     * The cached decode of an item, which may still be under way.
+     *
+     * @param item
+     * @return <code>null</code> if the item isn't cached
+     */
+    public CompletableFuture<Image> get(final GalleryItem item) {
+        return entries.get(item.getItem());
+    }
+
+    /**
+     * <p>The cached decode of an item, reading and decoding it first if it isn't cached.</p>
+     *
+     * <p>The header is parsed for the decoded size on the CPU pool, and the size reserved back on the JavaFX thread.
+     * If the reservation fails, the item is decoded to fit within the given size instead, and not cached.</p>
+     *
+     * @param item
+     * @param width the width to fall back to under memory pressure, or <code>0</code> to always decode at full
+     *              resolution
+     * @param height
+     * @return
+     */
+    public CompletableFuture<Image> load(final GalleryItem item, final double width, final double height) {
+        return load(item, TaskScheduler.Priority.VISIBLE, width, height);
+    }
+
+    /**
+     * The cached decode of an item, reading and decoding it first at the given priority if it isn't cached.
+     *
+     * @param item
+     * @param priority
+     * @param width the width to fall back to under memory pressure, or <code>0</code> to always decode at full
+     *              resolution
+     * @param height
+     * @return
+     */
+    public CompletableFuture<Image> load(final GalleryItem item, final TaskScheduler.Priority priority,
+                                         final double width, final double height) {
+        final CompletableFuture<Image> cached = get(item);
+        if (cached != null) return cached;
+        final CompletableFuture<ByteBuffer> read = scheduler
+                .submitIo(priority, item.getSourceFile(), () -> MediaFiles.read(item));
+        return read
+                .thenCompose(data -> scheduler.submitCpu(priority, () -> ImageDecoders.decodedSize(data)))
+                .thenComposeAsync(size -> {
+                    // Another view may have started the full-resolution decode in the meantime
+                    final CompletableFuture<Image> started = get(item);
+                    if (started != null) return started;
+                    final ByteBuffer data = read.join();
+                    if (!memoryGovernor.reserve(size) && width > 0 && height > 0) {
+                        return scheduler.submitCpu(priority, () -> ImageDecoders.decode(data, width, height));
+                    }
+                    final CompletableFuture<Image> decode = scheduler.submitCpu(priority, () -> ImageDecoders.decode(data));
+                    put(item, decode);
+                    return decode;
+                }, Platform::runLater);
+    }
+
+    /**
+     * Caches a full-resolution decode started elsewhere (i.e. by the single-image view).
+     *
+     * @param item
+     * @param decode
+     */
+    public void put(final GalleryItem item, final CompletableFuture<Image> decode) {
+        final File file = item.getItem();
+        final CompletableFuture<Image> replaced = entries.put(file, decode);
+        if (replaced != null) release(replaced);
+        decode.whenCompleteAsync((image, error) -> {
+            if (entries.get(file) != decode) return;
+            if (error != null || image.isError()) {
+                entries.remove(file);
+            } else {
+                resourceTracker.track(image, this);
+                trim();
+            }
+        }, Platform::runLater);
+    }
+
+    /**
+     * Heap bytes held by the completed decodes.
+     *
+     * @return
+     */
+    private long footprint() {
+        long total = 0;
+        for (final CompletableFuture<Image> entry : entries.values()) total += size(entry);
+        return total;
+    }
+
+    /**
+     * Drops the least recently used entries until back within budget.
+     */
+    private void trim() {
+        final long excess = footprint() - budget;
+        if (excess > 0) evict(excess, MIN_ENTRIES);
+    }
+
+    /**
+     * Drops least recently used completed entries, until enough bytes have been freed or only the most recent
+     * <code>keep</code> entries remain.
+     *
+     * @param bytes
+     * @param keep
+     * @return
+     */
+    private long evict(final long bytes, final int keep) {
+        long freed = 0;
+        int remaining = entries.size();
+        final Iterator<CompletableFuture<Image>> iterator = entries.values().iterator();
+        while (freed < bytes && remaining > keep && iterator.hasNext()) {
+            final CompletableFuture<Image> entry = iterator.next();
+            remaining--;
+            if (!entry.isDone()) continue;
+            freed += size(entry);
+            iterator.remove();
+            release(entry);
+        }
+        return freed;
+    }
+
+    /**
+     * Gives up the reference held on a dropped entry's image, if it was ever taken.
+     */
+    private void release(final CompletableFuture<Image> entry) {
+        if (entry.isDone() && !entry.isCompletedExceptionally()) resourceTracker.release(entry.join(), this);
+    }
+
+    private static long size(final CompletableFuture<Image> entry) {
+        if (!entry.isDone() || entry.isCompletedExceptionally()) return 0;
+        final Image image = entry.join();
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+}
@@ -0,0 +1,125 @@
+package com.steveperkins.mediagallery;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * <p>The Java Flight Recorder event types behind {@link Trace}.  Nothing else refers to this class, so that it
+ * (and <code>jdk.jfr</code>) is never loaded on a runtime without JFR.</p>
+ */
+final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    @Category("MediaGallery")
+    abstract static class StageEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Size")
+        @DataAmount
+        long size;
+        @Label("Format")
+        String format;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Cache Hit")
+        boolean cacheHit;
+        @Label("Detail")
+        String detail;
+    }
+
+    @Name("com.steveperkins.mediagallery.Load")
+    @Label("Load")
+    @Description("A file explicitly opened by the user, up to the point where its gallery starts to be populated")
+    static class LoadEvent extends StageEvent {
+    }
+
+    @Name("com.steveperkins.mediagallery.Scan")
+    @Label("Scan")
+    @Description("Listing and classifying the items of a directory or archive")
+    static class ScanEvent extends StageEvent {
+    }
+
+    @Name("com.steveperkins.mediagallery.Read")
+    @Label("Read")
+    @Description("Reading an item's bytes from disk or an archive")
+    static class ReadEvent extends StageEvent {
+    }
+
+    @Name("com.steveperkins.mediagallery.Decode")
+    @Label("Decode")
+    @Description("Decoding an image, at full resolution or scaled down")
+    static class DecodeEvent extends StageEvent {
+    }
+
+    @Name("com.steveperkins.mediagallery.Render")
+    @Label("Render")
+    @Description("From an item being selected until it is placed on screen")
+    static class RenderEvent extends StageEvent {
+    }
+
+    @Name("com.steveperkins.mediagallery.Resize")
+    @Label("Resize")
+    @Description("Zooming the displayed image to a new size")
+    static class ResizeEvent extends StageEvent {
+    }
+
+    @Name("com.steveperkins.mediagallery.Player")
+    @Label("Player")
+    @Description("A media player spending time in one status, e.g. UNKNOWN while the media is being opened")
+    static class PlayerEvent extends StageEvent {
+        @Label("Media Duration")
+        @Timespan(Timespan.MILLISECONDS)
+        long mediaDuration;
+    }
+
+    /**
+     * Creates and begins an event for a stage.
+     *
+     * @param stage
+     * @return <code>null</code> if no running recording has the event type enabled
+     */
+    static Object begin(final Trace.Stage stage) {
+        final StageEvent event;
+        switch (stage) {
+            case LOAD: event = new LoadEvent(); break;
+            case SCAN: event = new ScanEvent(); break;
+            case READ: event = new ReadEvent(); break;
+            case DECODE: event = new DecodeEvent(); break;
+            case RENDER: event = new RenderEvent(); break;
+            case RESIZE: event = new ResizeEvent(); break;
+            default: event = new PlayerEvent(); break;
+        }
+        if (!event.isEnabled()) return null;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Copies a span's details onto its event, ends it and commits it (if it passes the recording's thresholds).
+     *
+     * @param span
+     */
+    static void end(final Trace.Span span) {
+        final StageEvent event = (StageEvent) span.event;
+        event.end();
+        if (!event.shouldCommit()) return;
+        event.path = span.path;
+        event.size = span.size;
+        event.format = span.format;
+        event.width = span.width;
+        event.height = span.height;
+        event.cacheHit = span.cacheHit;
+        event.detail = span.detail;
+        if (event instanceof PlayerEvent) ((PlayerEvent) event).mediaDuration = span.mediaDuration;
+        event.commit();
+    }
+}
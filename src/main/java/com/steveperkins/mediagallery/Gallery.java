@@ -4,17 +4,21 @@ import javafx.beans.property.ReadOnlyStringProperty;
 import javafx.beans.property.ReadOnlyStringWrapper;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
 
 /**
- * A wrapper for the media items currently loaded into the gallery, along with a cursor for tracking
- * the currently-rendered item.
+ * <p>A wrapper for the media items currently loaded into the gallery, along with a cursor for tracking
+ * the currently-rendered item.</p>
+ *
+ * <p>Items are kept in a {@link GalleryStore} rather than a list of {@link GalleryItem} objects, so that
+ * directories with hundreds of thousands of files don't cost hundreds of megabytes of bookkeeping.  The
+ * <code>GalleryItem</code> instances returned by this class are created on access.</p>
  */
 public class Gallery {
 
-    private final List<GalleryItem> items = new ArrayList<>();
+    private final GalleryStore items = new GalleryStore();
+    private final GallerySearchIndex searchIndex = new GallerySearchIndex(items);
     private int cursor = -1;
     private final ReadOnlyStringWrapper statusProperty = new ReadOnlyStringWrapper("No file selected");
 
@@ -24,12 +28,13 @@ public class Gallery {
      * @param item
      */
     public void add(final GalleryItem item) {
-        if (item != null && !items.contains(item)) {
-            items.add(item);
+        final int index = item == null ? -1 : items.add(item);
+        if (index >= 0) {
+            searchIndex.add(index);
             if (items.size() == 1) {
                 cursor = 0;
             }
-            statusProperty.set((cursor + 1) + " of " + items.size());
+            updateStatus();
         }
     }
 
@@ -42,11 +47,72 @@ public class Gallery {
         items.stream().forEach(this::add);
     }
 
+    /**
+     * <p>Removes the item at a given position, in place.  Items after it shift down by one.</p>
+     *
+     * <p>If the removed item was under the cursor, the cursor stays at the same position (i.e. on the item that
+     * followed it), or moves back to the new last item if it was the last.  So calling {@link #get(int)} with
+     * {@link #position()} afterwards gives the item to show next.</p>
+     *
+     * @param index
+     * @return the removed item, or <code>null</code> if the position is out of range
+     */
+    public GalleryItem remove(final int index) {
+        if (index < 0 || index >= items.size()) return null;
+        final GalleryItem removed = items.get(index);
+        removeAll(new int[] { index });
+        return removed;
+    }
+
+    /**
+     * Removes the items at several positions in one pass, which costs the same as removing one.  The cursor moves
+     * as it would if they were removed one at a time with {@link #remove(int)}: it stays on the same item, or if
+     * that item was removed, on the first remaining item after it (or the new last item).
+     *
+     * @param indexes in any order; duplicates and positions out of range are ignored
+     * @return the number of items removed
+     */
+    public int removeAll(final int[] indexes) {
+        final int[] sorted = Arrays.stream(indexes).filter(index -> index >= 0 && index < items.size())
+                .sorted().distinct().toArray();
+        if (sorted.length == 0) return 0;
+        items.removeAll(sorted);
+        searchIndex.removeAll(sorted);
+        if (items.size() == 0) {
+            cursor = -1;
+            statusProperty.set("No file selected");
+            return sorted.length;
+        }
+        int before = 0;
+        while (before < sorted.length && sorted[before] < cursor) before++;
+        cursor = Math.min(cursor - before, items.size() - 1);
+        updateStatus();
+        return sorted.length;
+    }
+
+    /**
+     * Inserts an item at a given position (e.g. to restore a removed item to where it was), if it isn't already
+     * included.  Items from that position on shift up by one, and the cursor stays on the same item.
+     *
+     * @param index clamped to the current size of the gallery
+     * @param item
+     * @return the position the item was inserted at, or <code>-1</code> if it was already included
+     */
+    public int insert(final int index, final GalleryItem item) {
+        final int position = items.insert(Math.max(0, Math.min(index, items.size())), item);
+        if (position < 0) return -1;
+        searchIndex.insert(position);
+        if (cursor < 0 || position <= cursor) cursor++;
+        updateStatus();
+        return position;
+    }
+
     /**
      * Removes all items from the gallery.
      */
     public void clear() {
         items.clear();
+        searchIndex.clear();
         cursor = -1;
         statusProperty.set("No file selected");
     }
@@ -58,9 +124,9 @@ public class Gallery {
      * @return
      */
     public GalleryItem next() {
-        if (items.isEmpty()) return null;
+        if (items.size() == 0) return null;
         cursor = cursor + 1 < items.size() ? cursor + 1 : 0;
-        statusProperty.set((cursor + 1) + " of " + items.size());
+        updateStatus();
         return items.get(cursor);
     }
 
@@ -71,9 +137,9 @@ public class Gallery {
      * @return
      */
     public GalleryItem previous() {
-        if (items.isEmpty()) return null;
+        if (items.size() == 0) return null;
         cursor = cursor > 0 ? cursor - 1 : items.size() - 1;
-        statusProperty.set((cursor + 1) + " of " + items.size());
+        updateStatus();
         return items.get(cursor);
     }
 
@@ -84,9 +150,9 @@ public class Gallery {
      * @return
      */
     public GalleryItem first() {
-        if (items.isEmpty()) return null;
+        if (items.size() == 0) return null;
         cursor = 0;
-        statusProperty.set((cursor + 1) + " of " + items.size());
+        updateStatus();
         return items.get(cursor);
     }
 
@@ -97,12 +163,92 @@ public class Gallery {
      * @return
      */
     public GalleryItem last() {
-        if (items.isEmpty()) return null;
+        if (items.size() == 0) return null;
         cursor = items.size() - 1;
-        statusProperty.set((cursor + 1) + " of " + items.size());
+        updateStatus();
+        return items.get(cursor);
+    }
+
+    /**
+     * Moves the cursor state directly to a given position, and returns the item there (or <code>null</code> if
+     * the position is out of range).
+     *
+     * @param index
+     * @return
+     */
+    public GalleryItem seek(final int index) {
+        if (index < 0 || index >= items.size()) return null;
+        cursor = index;
+        updateStatus();
         return items.get(cursor);
     }
 
+    /**
+     * Moves the cursor state to a relative position in the gallery (<code>0.0</code> being the first item and
+     * <code>1.0</code> the last), and returns the item there (or <code>null</code> if the gallery is empty).
+     *
+     * @param fraction
+     * @return
+     */
+    public GalleryItem seek(final double fraction) {
+        return seek(indexOf(fraction));
+    }
+
+    /**
+     * Converts a relative position in the gallery (see {@link #seek(double)}) to an item position, without moving
+     * the cursor.
+     *
+     * @param fraction
+     * @return
+     */
+    public int indexOf(final double fraction) {
+        if (items.size() == 0) return -1;
+        final double clamped = Math.max(0.0, Math.min(1.0, fraction));
+        return (int) Math.round(clamped * (items.size() - 1));
+    }
+
+    /**
+     * The position of the item for a given file, or <code>-1</code> if it isn't in the gallery.
+     *
+     * @param file
+     * @return
+     */
+    public int indexOf(final File file) {
+        return items.indexOf(file);
+    }
+
+    /**
+     * Returns the item at a given position, without moving the cursor.
+     *
+     * @param index
+     * @return
+     */
+    public GalleryItem get(final int index) {
+        return items.get(index);
+    }
+
+    /**
+     * Finds items whose file names start with the given text, ignoring case.  The results are gallery positions,
+     * suitable for passing to {@link #seek(int)}.
+     *
+     * @param prefix
+     * @param limit the maximum number of matches to return
+     * @return
+     */
+    public int[] find(final String prefix, final int limit) {
+        return searchIndex.find(prefix, limit);
+    }
+
+    /**
+     * The file name of the item at a given position, without creating a {@link GalleryItem}.
+     *
+     * @param index
+     * @return
+     */
+    public String name(final int index) {
+        return items.name(index);
+    }
+
     public ReadOnlyStringProperty statusProperty() {
         return statusProperty.getReadOnlyProperty();
     }
@@ -112,10 +258,69 @@ public class Gallery {
      * @return
      */
     public boolean isEmpty() {
-        return items.isEmpty();
+        return items.size() == 0;
+    }
+
+    /**
+     * The position of the cursor (i.e. the currently-rendered item), or <code>-1</code> if the gallery is empty.
+     * @return
+     */
+    public int position() {
+        return cursor;
+    }
+
+    /**
+     * The number of items in the gallery.
+     * @return
+     */
+    public int size() {
+        return items.size();
     }
 
+    /**
+     * The directory the gallery was loaded from.  For an archive gallery, this is the directory containing the
+     * archive.
+     *
+     * @return
+     */
     public File directory() {
-        return items.isEmpty() ? null : items.get(0).getItem().getParentFile();
+        if (items.size() == 0) return null;
+        return items.archive(0) != null ? items.archive(0).getParentFile() : items.directory(0);
+    }
+
+    /**
+     * The archive the gallery was loaded from, or <code>null</code> if it was loaded from a plain directory.
+     *
+     * @return
+     */
+    public File archive() {
+        return items.size() == 0 ? null : items.archive(0);
+    }
+
+    /**
+     * An estimate of the heap bytes used to hold the gallery's items.
+     *
+     * @return
+     */
+    public long footprint() {
+        return items.footprint();
+    }
+
+    /**
+     * A human-readable summary of {@link #footprint()}, e.g. "12,345 items in 1.2 MB (102 bytes/item)".
+     *
+     * @return
+     */
+    public String footprintSummary() {
+        final long bytes = items.footprint();
+        final String total = bytes >= 1024 * 1024
+                ? String.format("%.1f MB", bytes / (1024.0 * 1024.0))
+                : String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%,d items in %s (%d bytes/item)", items.size(), total,
+                items.size() == 0 ? 0 : bytes / items.size());
+    }
+
+    private void updateStatus() {
+        statusProperty.set((cursor + 1) + " of " + items.size());
     }
 }
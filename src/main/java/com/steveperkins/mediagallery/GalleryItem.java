@@ -1,41 +1,69 @@
 package com.steveperkins.mediagallery;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
 
 /**
- * A wrapper for a supported media file.  Includes a file reference and type identifier (i.e. image or video).
+ * <p>A wrapper for a supported media file.  Includes a file reference and type identifier (i.e. image or video),
+ * along with the file size and modification time captured when the item was created.</p>
+ *
+ * <p>{@link Gallery} does not hold onto instances of this class.  It keeps the same information in a compact
+ * {@link GalleryStore}, and creates <code>GalleryItem</code> views on demand.  So two instances referring to the
+ * same file are {@link #equals(Object)}.</p>
+ *
+ * <p>An item may also be an entry inside a ZIP (or CBZ) archive.  Its file reference is then a virtual path with the
+ * archive file as an ancestor, e.g. "/photos/delivery.zip/day1/001.jpg", and {@link #getUrl()} returns a
+ * <code>jar:</code> URL that JavaFX can stream straight out of the archive.</p>
  */
 public class GalleryItem {
 
-    public static final List<String> imageExtensions = Collections.unmodifiableList(Arrays.asList(".bmp", ".gif", ".jpg", ".png"));
+    /** Whatever the registered {@link ImageDecoder}s can handle: at least ".bmp", ".gif", ".jpg" and ".png". */
+    public static final List<String> imageExtensions = Collections.unmodifiableList(ImageDecoders.extensions());
     public static final List<String> videoExtensions = Collections.unmodifiableList(Arrays.asList(".aif", ".aiff", ".fxm", ".flv", ".mp3", ".mp4", ".m4a", ".m4v", ".wav"));
     public static final List<String> allExtensions = Collections.unmodifiableList(
             Stream.concat(imageExtensions.stream(), videoExtensions.stream()).collect(Collectors.toList())
     );
+    public static final List<String> archiveExtensions = Collections.unmodifiableList(Arrays.asList(".cbz", ".zip"));
 
-    private enum Type {
+    enum Type {
         IMAGE, VIDEO
     }
 
     private final File item;
+    private final File archive;
     private final Type type;
+    private final long size;
+    private final long lastModified;
 
     /**
      * <p>A private constructor, which assumes that the file is already known to be a supported media type.</p>
      *
-     * <p>Use {@link GalleryItem#create(File)}.</p>
+     * <p>Use {@link GalleryItem#create(File)}.  This constructor is package-private only so that
+     * {@link GalleryStore} can create views of the entries it holds.</p>
      *
      * @param file
+     * @param archive the archive containing this item, or <code>null</code> for a plain file
      * @param type
+     * @param size
+     * @param lastModified
      */
-    private GalleryItem(final File file, final Type type) {
+    GalleryItem(final File file, final File archive, final Type type, final long size, final long lastModified) {
         this.item = file;
+        this.archive = archive;
         this.type = type;
+        this.size = size;
+        this.lastModified = lastModified;
     }
 
     /**
@@ -47,22 +75,152 @@ public class GalleryItem {
      */
     public static GalleryItem create(final File file) {
         if (file == null) return null;
-        if (file.getName().lastIndexOf('.') == -1 || file.getName().endsWith(".")) return null;
+        final Type type = typeOf(file.getName());
+        if (type == null) return null;
 
-        final String ext = file.getName().substring(file.getName().lastIndexOf('.')).toLowerCase();
-        if (file.isFile() && imageExtensions.contains(ext)) {
-            return new GalleryItem(file, Type.IMAGE);
-        } else if (file.isFile() && videoExtensions.contains(ext)) {
-            return new GalleryItem(file, Type.VIDEO);
+        // One stat call for the file check, size and modification time together
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) return null;
+            return new GalleryItem(file, null, type, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Same as {@link #create(File)}, for a file whose attributes have already been read.  Directory walks (i.e.
+     * {@link Files#walkFileTree}) hand over attributes for every entry, which on Windows come straight from the
+     * directory listing, so a whole folder can be classified without a single extra stat call.
+     *
+     * @param file
+     * @param attributes
+     * @return
+     */
+    public static GalleryItem create(final File file, final BasicFileAttributes attributes) {
+        if (file == null || attributes == null || !attributes.isRegularFile()) return null;
+        final Type type = typeOf(file.getName());
+        if (type == null) return null;
+        return new GalleryItem(file, null, type, attributes.size(), attributes.lastModifiedTime().toMillis());
+    }
+
+    /**
+     * Whether a file's name has a supported media extension.  Unlike {@link #create(File)}, this never touches the
+     * file system, so it is cheap enough for e.g. every drag-over event.
+     *
+     * @param file
+     * @return
+     */
+    public static boolean hasMediaExtension(final File file) {
+        return file != null && typeOf(file.getName()) != null;
+    }
+
+    /**
+     * Check whether an archive entry is of a supported media type, and returns either a <code>GalleryItem</code>
+     * instance or else <code>null</code> if the entry is unsupported (or a directory).
+     *
+     * @param archive
+     * @param entry
+     * @return
+     */
+    public static GalleryItem create(final File archive, final ZipEntry entry) {
+        if (archive == null || entry == null || entry.isDirectory()) return null;
+        final Type type = typeOf(entry.getName());
+        if (type == null) return null;
+        return new GalleryItem(new File(archive, entry.getName()), archive, type, entry.getSize(), entry.getTime());
+    }
+
+    /**
+     * Whether a file has one of the {@link #archiveExtensions}, and so can be browsed as a gallery of its entries.
+     *
+     * @param file
+     * @return
+     */
+    public static boolean isArchive(final File file) {
+        if (file == null) return false;
+        final String name = file.getName().toLowerCase();
+        return archiveExtensions.stream().anyMatch(name::endsWith) && file.isFile();
+    }
+
+    /**
+     * Determines the media type from a file or entry name's extension, or <code>null</code> if it's unsupported.
+     *
+     * @param name
+     * @return
+     */
+    private static Type typeOf(final String name) {
+        if (name.lastIndexOf('.') == -1 || name.endsWith(".")) return null;
+        final String ext = name.substring(name.lastIndexOf('.')).toLowerCase();
+        if (imageExtensions.contains(ext)) {
+            return Type.IMAGE;
+        } else if (videoExtensions.contains(ext)) {
+            return Type.VIDEO;
         } else {
             return null;
         }
     }
 
+    /**
+     * The file reference for this item.  For archive entries this is a virtual path (see {@link #getArchive()}),
+     * which can't be opened directly.
+     *
+     * @return
+     */
     public File getItem() {
         return this.item;
     }
 
+    /**
+     * The archive containing this item, or <code>null</code> if it's a plain file.
+     *
+     * @return
+     */
+    public File getArchive() {
+        return archive;
+    }
+
+    public boolean isArchiveEntry() {
+        return archive != null;
+    }
+
+    /**
+     * The real file on disk that holds this item's bytes: the item itself, or the archive containing it.
+     *
+     * @return
+     */
+    public File getSourceFile() {
+        return archive != null ? archive : item;
+    }
+
+    /**
+     * The entry name within the archive (using "/" separators), or <code>null</code> for a plain file.
+     *
+     * @return
+     */
+    public String getEntryName() {
+        if (archive == null) return null;
+        return item.getPath().substring(archive.getPath().length() + 1).replace(File.separatorChar, '/');
+    }
+
+    /**
+     * A URL for loading this item with {@link javafx.scene.image.Image} or {@link javafx.scene.media.Media}.  Plain
+     * files get a <code>file:</code> URL, and archive entries a <code>jar:</code> URL.  The bytes of images are
+     * read by {@link MediaFiles} instead, which reads archive entries through the archive's own open
+     * {@link java.util.zip.ZipFile}.
+     *
+     * @return
+     */
+    public String getUrl() {
+        if (archive == null) return item.toURI().toString();
+        try {
+            // Percent-encode the entry name as a URI path, since it may contain spaces or '#'
+            final String entryPath = new URI(null, null, getEntryName(), null).getRawPath();
+            return "jar:" + archive.toURI() + "!/" + entryPath;
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public boolean isImage() {
         return Type.IMAGE.equals(type);
     }
@@ -70,4 +228,26 @@ public class GalleryItem {
     public boolean isVideo() {
         return Type.VIDEO.equals(type);
     }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof GalleryItem && item.equals(((GalleryItem) other).item);
+    }
+
+    @Override
+    public int hashCode() {
+        return item.hashCode();
+    }
 }
@@ -0,0 +1,212 @@
+package com.steveperkins.mediagallery;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>A case-insensitive file name prefix index over the entries of a {@link GalleryStore}, used by the
+ * type-to-find box.</p>
+ *
+ * <p>Entry indexes are held in two parts: a large array sorted by name, and a small unsorted tail of recently
+ * added entries.  Adding an entry just appends to the tail.  When the tail fills up, it is sorted and merged into
+ * the main array in one linear pass.  A query binary-searches the main array for the range of names starting
+ * with the prefix, and scans the (bounded) tail, so lookups stay in the microsecond range no matter how many
+ * items are loaded or how recently they were added.</p>
+ *
+ * <p>Case folding only applies to ASCII letters, which keeps comparisons directly on the store's UTF-8 bytes.</p>
+ */
+final class GallerySearchIndex {
+
+    private static final int TAIL_CAPACITY = 4096;
+
+    private final GalleryStore store;
+    private int[] sorted = new int[0];
+    private int sortedCount = 0;
+    private final int[] tail = new int[TAIL_CAPACITY];
+    private int tailCount = 0;
+
+    GallerySearchIndex(final GalleryStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Adds a newly-appended store entry to the index.
+     *
+     * @param index
+     */
+    void add(final int index) {
+        if (tailCount == TAIL_CAPACITY) {
+            mergeTail();
+        }
+        tail[tailCount++] = index;
+    }
+
+    /**
+     * Adjusts the index after store entries have been removed (see {@link GalleryStore#removeAll(int[])}), without
+     * re-sorting.  Removal doesn't change the relative order of the remaining names, so this is a single pass that
+     * drops the removed entries and shifts the indexes of later ones down.
+     *
+     * @param removed the removed store indexes, ascending and without duplicates
+     */
+    void removeAll(final int[] removed) {
+        sortedCount = remove(sorted, sortedCount, removed);
+        tailCount = remove(tail, tailCount, removed);
+    }
+
+    /**
+     * Adjusts the index after a store entry has been inserted (see {@link GalleryStore#insert(int, GalleryItem)}),
+     * by shifting the indexes of later entries up and then adding the new one.
+     *
+     * @param index
+     */
+    void insert(final int index) {
+        for (int i = 0; i < sortedCount; i++) {
+            if (sorted[i] >= index) sorted[i]++;
+        }
+        for (int i = 0; i < tailCount; i++) {
+            if (tail[i] >= index) tail[i]++;
+        }
+        add(index);
+    }
+
+    void clear() {
+        sorted = new int[0];
+        sortedCount = 0;
+        tailCount = 0;
+    }
+
+    /**
+     * Finds entries whose names start with the given prefix, ignoring ASCII case.
+     *
+     * @param prefix
+     * @param limit the maximum number of matches to return
+     * @return store indexes of the matching entries, in name order
+     */
+    int[] find(final String prefix, final int limit) {
+        if (prefix == null || prefix.isEmpty() || limit <= 0) return new int[0];
+        final byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < key.length; i++) key[i] = fold(key[i]);
+
+        // The contiguous range of matches in the sorted array
+        int low = 0;
+        int high = sortedCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (comparePrefix(sorted[mid], key) < 0) low = mid + 1; else high = mid;
+        }
+        final int start = low;
+        high = sortedCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (comparePrefix(sorted[mid], key) <= 0) low = mid + 1; else high = mid;
+        }
+        final int end = low;
+
+        // Matches from the tail, which then need to be interleaved with the sorted range
+        final int[] tailMatches = new int[tailCount];
+        int tailMatchCount = 0;
+        for (int i = 0; i < tailCount; i++) {
+            if (comparePrefix(tail[i], key) == 0) tailMatches[tailMatchCount++] = tail[i];
+        }
+        sort(tailMatches, tailMatchCount);
+
+        final int[] results = new int[Math.min(limit, (end - start) + tailMatchCount)];
+        int s = start;
+        int t = 0;
+        for (int r = 0; r < results.length; r++) {
+            if (t >= tailMatchCount || (s < end && compare(sorted[s], tailMatches[t]) <= 0)) {
+                results[r] = sorted[s++];
+            } else {
+                results[r] = tailMatches[t++];
+            }
+        }
+        return results;
+    }
+
+    private static int remove(final int[] indexes, final int count, final int[] removed) {
+        int write = 0;
+        for (int read = 0; read < count; read++) {
+            final int position = Arrays.binarySearch(removed, indexes[read]);
+            if (position >= 0) continue;
+            // (-position - 1) is the number of removed entries before this one
+            indexes[write++] = indexes[read] - (-position - 1);
+        }
+        return write;
+    }
+
+    /**
+     * Sorts the tail and merges it into the sorted array, back to front so that no scratch array is needed.  Each
+     * tail entry's position is found by binary search, and the run of sorted entries above it is moved with a
+     * single block copy, so a merge costs O(tail * log n) name comparisons rather than O(n).
+     */
+    private void mergeTail() {
+        sort(tail, tailCount);
+        if (sorted.length < sortedCount + tailCount) {
+            sorted = Arrays.copyOf(sorted, Math.max(sortedCount + tailCount, sorted.length * 2));
+        }
+        int s = sortedCount;
+        for (int t = tailCount - 1; t >= 0; t--) {
+            // Upper bound of tail[t] within sorted[0, s), so that equal names keep insertion order
+            int low = 0;
+            int high = s;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (compare(sorted[mid], tail[t]) <= 0) low = mid + 1; else high = mid;
+            }
+            System.arraycopy(sorted, low, sorted, low + t + 1, s - low);
+            sorted[low + t] = tail[t];
+            s = low;
+        }
+        sortedCount += tailCount;
+        tailCount = 0;
+    }
+
+    /**
+     * A stable merge sort of the first <code>count</code> elements, ordered by entry name.
+     */
+    private void sort(final int[] indexes, final int count) {
+        if (count < 2) return;
+        final int[] scratch = Arrays.copyOf(indexes, count);
+        mergeSort(scratch, indexes, 0, count);
+    }
+
+    private void mergeSort(final int[] source, final int[] destination, final int from, final int to) {
+        if (to - from < 8) {
+            // Insertion sort for short runs
+            for (int i = from + 1; i < to; i++) {
+                final int value = destination[i];
+                int j = i - 1;
+                while (j >= from && compare(destination[j], value) > 0) {
+                    destination[j + 1] = destination[j];
+                    j--;
+                }
+                destination[j + 1] = value;
+            }
+            return;
+        }
+        final int mid = (from + to) >>> 1;
+        mergeSort(destination, source, from, mid);
+        mergeSort(destination, source, mid, to);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && compare(source[left], source[right]) <= 0)) {
+                destination[i] = source[left++];
+            } else {
+                destination[i] = source[right++];
+            }
+        }
+    }
+
+    private int compare(final int a, final int b) {
+        return store.compareNames(a, b);
+    }
+
+    private int comparePrefix(final int index, final byte[] key) {
+        return store.compareNamePrefix(index, key);
+    }
+
+    static byte fold(final byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
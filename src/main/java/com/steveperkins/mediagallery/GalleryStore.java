@@ -0,0 +1,404 @@
+package com.steveperkins.mediagallery;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The compact backing store for {@link Gallery}.  Rather than holding one {@link GalleryItem} (and its
+ * {@link File}, and its path <code>String</code>) per entry, this class keeps:</p>
+ *
+ * <ul>
+ *     <li>one interned {@link File} per distinct parent directory,</li>
+ *     <li>every file name encoded as UTF-8 in a single shared byte arena, and</li>
+ *     <li>the directory index, name offset and length, media type, size and modification time of each entry in
+ *     parallel primitive arrays.</li>
+ * </ul>
+ *
+ * <p>Entries from a ZIP archive have virtual parent directories inside the archive file (see {@link GalleryItem}),
+ * and each interned directory remembers which archive, if any, it belongs to.</p>
+ *
+ * <p>Duplicate detection uses an open-addressed hash table of entry indexes, so no per-entry objects exist at all.
+ * {@link GalleryItem} instances are only created when an entry is accessed through {@link #get(int)}.</p>
+ *
+ * <p>This class is not thread-safe.  Like the rest of the gallery state, it is only touched from the JavaFX
+ * application thread.</p>
+ */
+final class GalleryStore {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final List<File> directories = new ArrayList<>();
+    private final List<File> directoryArchives = new ArrayList<>();
+    private final Map<File, Integer> directoryIndexes = new HashMap<>();
+
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+    private int namesLength = 0;
+    private int namesGarbage = 0;
+
+    private int[] directory = new int[INITIAL_CAPACITY];
+    private int[] nameOffset = new int[INITIAL_CAPACITY];
+    private short[] nameLength = new short[INITIAL_CAPACITY];
+    private byte[] type = new byte[INITIAL_CAPACITY];
+    private long[] size = new long[INITIAL_CAPACITY];
+    private long[] lastModified = new long[INITIAL_CAPACITY];
+    private int count = 0;
+
+    /** Open-addressed hash table of (entry index + 1), with 0 marking an empty slot.  Always a power of two. */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    /**
+     * Appends an entry, unless an entry with the same parent directory and file name is already present.
+     *
+     * @param item
+     * @return the index of the new entry, or <code>-1</code> if it was a duplicate
+     */
+    int add(final GalleryItem item) {
+        final File file = item.getItem();
+        final int dir = internDirectory(file.getParentFile(), item.getArchive());
+        final byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(dir, name, 0, name.length);
+        if (find(dir, name, hash) >= 0) return -1;
+
+        ensureCapacity(count + 1);
+        ensureNamesCapacity(namesLength + name.length);
+        System.arraycopy(name, 0, names, namesLength, name.length);
+
+        directory[count] = dir;
+        nameOffset[count] = namesLength;
+        nameLength[count] = (short) name.length;
+        type[count] = (byte) item.getType().ordinal();
+        size[count] = item.getSize();
+        lastModified[count] = item.getLastModified();
+        namesLength += name.length;
+        insertSlot(hash, count);
+        return count++;
+    }
+
+    /**
+     * Inserts an entry at a given index, shifting all later entries up, unless an entry with the same parent
+     * directory and file name is already present.
+     *
+     * @param index
+     * @param item
+     * @return the index of the new entry, or <code>-1</code> if it was a duplicate
+     */
+    int insert(final int index, final GalleryItem item) {
+        if (index < 0 || index > count) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        if (index == count) return add(item);
+        final File file = item.getItem();
+        final int dir = internDirectory(file.getParentFile(), item.getArchive());
+        final byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+        final int hash = hash(dir, name, 0, name.length);
+        if (find(dir, name, hash) >= 0) return -1;
+
+        ensureCapacity(count + 1);
+        ensureNamesCapacity(namesLength + name.length);
+        System.arraycopy(name, 0, names, namesLength, name.length);
+
+        final int moved = count - index;
+        System.arraycopy(directory, index, directory, index + 1, moved);
+        System.arraycopy(nameOffset, index, nameOffset, index + 1, moved);
+        System.arraycopy(nameLength, index, nameLength, index + 1, moved);
+        System.arraycopy(type, index, type, index + 1, moved);
+        System.arraycopy(size, index, size, index + 1, moved);
+        System.arraycopy(lastModified, index, lastModified, index + 1, moved);
+        directory[index] = dir;
+        nameOffset[index] = namesLength;
+        nameLength[index] = (short) name.length;
+        type[index] = (byte) item.getType().ordinal();
+        size[index] = item.getSize();
+        lastModified[index] = item.getLastModified();
+        namesLength += name.length;
+
+        count++;
+        if (count * 2 > slots.length) {
+            rehash(slots.length * 2);
+        } else {
+            // Shift the hash table's references to later entries, rather than rehashing everything
+            for (int slot = 0; slot < slots.length; slot++) {
+                if (slots[slot] > index) slots[slot]++;
+            }
+            final int mask = slots.length - 1;
+            int slot = hash & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = index + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the entry for a given file, or <code>-1</code> if no such entry exists.
+     *
+     * @param file
+     * @return
+     */
+    int indexOf(final File file) {
+        if (file == null) return -1;
+        final Integer dir = directoryIndexes.get(file.getParentFile());
+        if (dir == null) return -1;
+        final byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+        return find(dir, name, hash(dir, name, 0, name.length));
+    }
+
+    /**
+     * Creates a {@link GalleryItem} view of the entry at a given index.
+     *
+     * @param index
+     * @return
+     */
+    GalleryItem get(final int index) {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+        final File file = new File(directories.get(directory[index]), name(index));
+        return new GalleryItem(file, directoryArchives.get(directory[index]), GalleryItem.Type.values()[type[index]],
+                size[index], lastModified[index]);
+    }
+
+    /**
+     * Decodes the file name of the entry at a given index, without creating a {@link File} or {@link GalleryItem}.
+     *
+     * @param index
+     * @return
+     */
+    String name(final int index) {
+        return new String(names, nameOffset[index], nameLength[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Compares the file names of two entries, ignoring ASCII case, directly on the encoded bytes.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    int compareNames(final int a, final int b) {
+        final int aOffset = nameOffset[a];
+        final int bOffset = nameOffset[b];
+        final int length = Math.min(nameLength[a], nameLength[b]);
+        for (int i = 0; i < length; i++) {
+            final int difference = (GallerySearchIndex.fold(names[aOffset + i]) & 0xff)
+                    - (GallerySearchIndex.fold(names[bOffset + i]) & 0xff);
+            if (difference != 0) return difference;
+        }
+        return nameLength[a] - nameLength[b];
+    }
+
+    /**
+     * Compares the file name of an entry against a search prefix, ignoring ASCII case.  Returns zero if the name
+     * starts with the prefix, and otherwise orders the name before or after every name that does.
+     *
+     * @param index
+     * @param prefix UTF-8 bytes, with ASCII letters already folded to lower case
+     * @return
+     */
+    int compareNamePrefix(final int index, final byte[] prefix) {
+        final int offset = nameOffset[index];
+        final int length = Math.min(nameLength[index], prefix.length);
+        for (int i = 0; i < length; i++) {
+            final int difference = (GallerySearchIndex.fold(names[offset + i]) & 0xff) - (prefix[i] & 0xff);
+            if (difference != 0) return difference;
+        }
+        return nameLength[index] >= prefix.length ? 0 : -1;
+    }
+
+    /**
+     * Removes the entries at the given indexes, shifting all later entries down.  The whole batch is applied in a
+     * single pass over the arrays, so removing many entries at once costs the same as removing one.
+     *
+     * @param indexes ascending or not, duplicates are ignored
+     */
+    void removeAll(final int[] indexes) {
+        if (indexes.length == 0) return;
+        final int[] sorted = indexes.clone();
+        Arrays.sort(sorted);
+
+        int write = 0;
+        int next = 0;
+        for (int read = 0; read < count; read++) {
+            while (next < sorted.length && sorted[next] < read) next++;
+            if (next < sorted.length && sorted[next] == read) {
+                namesGarbage += nameLength[read];
+                continue;
+            }
+            if (write != read) {
+                directory[write] = directory[read];
+                nameOffset[write] = nameOffset[read];
+                nameLength[write] = nameLength[read];
+                type[write] = type[read];
+                size[write] = size[read];
+                lastModified[write] = lastModified[read];
+            }
+            write++;
+        }
+        count = write;
+
+        if (namesGarbage > namesLength / 2) compactNames();
+        rehash(slots.length);
+    }
+
+    /**
+     * Removes every entry, and releases all but the initial capacity.
+     */
+    void clear() {
+        directories.clear();
+        directoryArchives.clear();
+        directoryIndexes.clear();
+        names = new byte[INITIAL_CAPACITY * 16];
+        namesLength = 0;
+        namesGarbage = 0;
+        directory = new int[INITIAL_CAPACITY];
+        nameOffset = new int[INITIAL_CAPACITY];
+        nameLength = new short[INITIAL_CAPACITY];
+        type = new byte[INITIAL_CAPACITY];
+        size = new long[INITIAL_CAPACITY];
+        lastModified = new long[INITIAL_CAPACITY];
+        slots = new int[INITIAL_CAPACITY * 2];
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean isImage(final int index) {
+        return type[index] == GalleryItem.Type.IMAGE.ordinal();
+    }
+
+    boolean isVideo(final int index) {
+        return type[index] == GalleryItem.Type.VIDEO.ordinal();
+    }
+
+    long fileSize(final int index) {
+        return size[index];
+    }
+
+    long lastModified(final int index) {
+        return lastModified[index];
+    }
+
+    File directory(final int index) {
+        return directories.get(directory[index]);
+    }
+
+    /**
+     * The archive containing the entry at a given index, or <code>null</code> if it's a plain file.
+     *
+     * @param index
+     * @return
+     */
+    File archive(final int index) {
+        return directoryArchives.get(directory[index]);
+    }
+
+    /**
+     * An estimate of the heap bytes held by this store: the backing arrays at their current capacity, plus the
+     * interned directory paths.  Object headers and padding are approximated with a flat 16 bytes per object.
+     *
+     * @return
+     */
+    long footprint() {
+        long bytes = 0;
+        bytes += 16 + names.length;
+        bytes += 16 + directory.length * 4L;
+        bytes += 16 + nameOffset.length * 4L;
+        bytes += 16 + nameLength.length * 2L;
+        bytes += 16 + type.length;
+        bytes += 16 + size.length * 8L;
+        bytes += 16 + lastModified.length * 8L;
+        bytes += 16 + slots.length * 4L;
+        for (final File dir : directories) {
+            // File + String + char[] + list slots (the Map entry shares the same key, and archives are shared)
+            bytes += 16 + 16 + 16 + dir.getPath().length() * 2L + 48 + 8;
+        }
+        return bytes;
+    }
+
+    private int internDirectory(final File dir, final File archive) {
+        final Integer existing = directoryIndexes.get(dir);
+        if (existing != null) return existing;
+        directories.add(dir);
+        directoryArchives.add(archive);
+        directoryIndexes.put(dir, directories.size() - 1);
+        return directories.size() - 1;
+    }
+
+    private int find(final int dir, final byte[] name, final int hash) {
+        final int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            final int index = slots[slot] - 1;
+            if (directory[index] == dir && nameEquals(index, name)) return index;
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(final int index, final byte[] name) {
+        if (nameLength[index] != name.length) return false;
+        final int offset = nameOffset[index];
+        for (int i = 0; i < name.length; i++) {
+            if (names[offset + i] != name[i]) return false;
+        }
+        return true;
+    }
+
+    private void insertSlot(final int hash, final int index) {
+        if ((count + 1) * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        final int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) slot = (slot + 1) & mask;
+        slots[slot] = index + 1;
+    }
+
+    private void rehash(final int capacity) {
+        slots = new int[capacity];
+        final int mask = capacity - 1;
+        for (int index = 0; index < count; index++) {
+            int slot = hash(directory[index], names, nameOffset[index], nameLength[index]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = index + 1;
+        }
+    }
+
+    private void compactNames() {
+        final byte[] compacted = new byte[Math.max(INITIAL_CAPACITY * 16, namesLength - namesGarbage)];
+        int position = 0;
+        for (int index = 0; index < count; index++) {
+            System.arraycopy(names, nameOffset[index], compacted, position, nameLength[index]);
+            nameOffset[index] = position;
+            position += nameLength[index];
+        }
+        names = compacted;
+        namesLength = position;
+        namesGarbage = 0;
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity <= directory.length) return;
+        final int newCapacity = Math.max(capacity, directory.length + (directory.length >> 1));
+        directory = Arrays.copyOf(directory, newCapacity);
+        nameOffset = Arrays.copyOf(nameOffset, newCapacity);
+        nameLength = Arrays.copyOf(nameLength, newCapacity);
+        type = Arrays.copyOf(type, newCapacity);
+        size = Arrays.copyOf(size, newCapacity);
+        lastModified = Arrays.copyOf(lastModified, newCapacity);
+    }
+
+    private void ensureNamesCapacity(final int capacity) {
+        if (capacity <= names.length) return;
+        names = Arrays.copyOf(names, Math.max(capacity, names.length + (names.length >> 1)));
+    }
+
+    private static int hash(final int dir, final byte[] bytes, final int offset, final int length) {
+        int hash = 31 * 17 + dir;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // Spread the high bits down, since the table index only uses the low bits
+        return hash ^ (hash >>> 16);
+    }
+}
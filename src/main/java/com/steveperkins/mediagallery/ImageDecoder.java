@@ -0,0 +1,52 @@
+package com.steveperkins.mediagallery;
+
+import javafx.scene.image.Image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * <p>A service provider interface for turning the raw bytes of an image file into a JavaFX {@link Image}.</p>
+ *
+ * <p>{@link ImageDecoders} picks an implementation for each decode, by the format detected from the file's
+ * contents and the size the image is wanted at.  Additional decoders can be plugged in without touching the rest of
+ * the application, by listing them in a <code>META-INF/services/com.steveperkins.mediagallery.ImageDecoder</code>
+ * file on the classpath.  Those are consulted before the built-in ones.</p>
+ */
+public interface ImageDecoder {
+
+    /**
+     * The file extensions (lower case, including the dot) that this decoder makes browsable in the gallery.  May be
+     * empty if the decoder only handles formats that other decoders already claim, or if it isn't usable in the
+     * current runtime.
+     *
+     * @return
+     */
+    List<String> extensions();
+
+    /**
+     * Whether this decoder should be tried for a given format and requested size.
+     *
+     * @param format a format name from {@link ImageDecoders#detectFormat(ByteBuffer)}, e.g. "jpeg"
+     * @param width the width to fit the image within, or <code>0</code> for full resolution
+     * @param height the height to fit the image within, or <code>0</code> for full resolution
+     * @return
+     */
+    boolean canDecode(String format, double width, double height);
+
+    /**
+     * Decodes an image.  If a size is requested, the result preserves the aspect ratio, and should be no smaller
+     * than needed to fill that size, but may be somewhat larger.
+     *
+     * @param data the whole file, from its position to its limit.  This may be a memory-mapped file, so it should
+     *             be read directly (e.g. through a {@link ByteBufferInputStream}) rather than copied.  The buffer is
+     *             the decoder's own view, and may be consumed freely.
+     * @param width the width to fit the image within, or <code>0</code> for full resolution
+     * @param height the height to fit the image within, or <code>0</code> for full resolution
+     * @return the decoded image, or <code>null</code> if this decoder declines this particular file (the next
+     * decoder is then tried)
+     * @throws IOException
+     */
+    Image decode(ByteBuffer data, double width, double height) throws IOException;
+}
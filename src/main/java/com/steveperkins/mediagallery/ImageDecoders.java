@@ -0,0 +1,173 @@
+package com.steveperkins.mediagallery;
+
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * <p>The registry of {@link ImageDecoder} implementations, and the single entry point for decoding images.</p>
+ *
+ * <p>Decoders are tried in order: any found through {@link ServiceLoader}, then the built-in ones:</p>
+ *
+ * <ol>
+ *     <li>{@link JpegPreviewDecoder}, for JPEGs wanted at a fraction of their full size,</li>
+ *     <li>{@link ImageIoDecoder}s for TIFF and WebP, when the runtime (or a plugin) provides ImageIO readers for
+ *     them, and</li>
+ *     <li>{@link JavaFxImageDecoder}, JavaFX's own decoding for BMP, GIF, JPEG and PNG.</li>
+ * </ol>
+ *
+ * <p>The first decoder that accepts the detected format and requested size, and doesn't decline the file, wins.</p>
+ */
+public final class ImageDecoders {
+
+    private static final List<ImageDecoder> decoders;
+
+    static {
+        final List<ImageDecoder> all = new ArrayList<>();
+        for (final ImageDecoder decoder : ServiceLoader.load(ImageDecoder.class)) {
+            all.add(decoder);
+        }
+        all.add(new JpegPreviewDecoder());
+        all.add(new ImageIoDecoder("tiff", Arrays.asList(".tif", ".tiff")));
+        all.add(new ImageIoDecoder("webp", Collections.singletonList(".webp")));
+        all.add(new JavaFxImageDecoder());
+        decoders = Collections.unmodifiableList(all);
+    }
+
+    private ImageDecoders() {
+    }
+
+    /**
+     * Every file extension that some registered decoder can handle, in registration order without duplicates.
+     *
+     * @return
+     */
+    public static List<String> extensions() {
+        final List<String> extensions = new ArrayList<>();
+        for (final ImageDecoder decoder : decoders) {
+            decoder.extensions().stream().filter(ext -> !extensions.contains(ext)).forEach(extensions::add);
+        }
+        return extensions;
+    }
+
+    /**
+     * Decodes an image at full resolution.
+     *
+     * @param data the whole file, as returned by {@link MediaFiles#read(GalleryItem)}
+     * @return
+     * @throws IOException if no decoder could handle the file
+     */
+    public static Image decode(final ByteBuffer data) throws IOException {
+        return decode(data, 0, 0);
+    }
+
+    /**
+     * Decodes an image to fit within a given size, preserving its aspect ratio.  The result may be larger than
+     * requested when a decoder can only reduce the size in steps, so it is meant for display through a fitted
+     * {@link javafx.scene.image.ImageView}.
+     *
+     * @param data the whole file, as returned by {@link MediaFiles#read(GalleryItem)}
+     * @param width
+     * @param height
+     * @return
+     * @throws IOException if no decoder could handle the file
+     */
+    public static Image decode(final ByteBuffer data, final double width, final double height) throws IOException {
+        final String format = detectFormat(data);
+        final Trace.Span span = Trace.begin(Trace.Stage.DECODE).size(data.remaining()).format(format);
+        IOException failure = null;
+        for (final ImageDecoder decoder : decoders) {
+            if (!decoder.canDecode(format, width, height)) continue;
+            try {
+                // Each decoder gets its own view, so a declining one can't leave the data half consumed
+                final Image image = decoder.decode(data.duplicate(), width, height);
+                if (image != null) {
+                    span.dimensions(image.getWidth(), image.getHeight())
+                            .detail(decoder.getClass().getSimpleName() + (width > 0 && height > 0 ? ", scaled" : ""))
+                            .end();
+                    return image;
+                }
+            } catch (IOException e) {
+                // Let a more general decoder have a go before giving up
+                failure = e;
+            }
+        }
+        span.detail("failed").end();
+        throw failure != null ? failure : new IOException("No decoder for format: " + format);
+    }
+
+    /**
+     * Estimates the heap bytes needed to decode an image at full resolution, by parsing only its header.
+     * Returns <code>0</code> if the header can't be read (the decode will then go ahead, and fail on its own).
+     *
+     * @param data
+     * @return
+     */
+    public static long decodedSize(final ByteBuffer data) {
+        try (final ImageInputStream input = ImageIO.createImageInputStream(new ByteBufferInputStream(data))) {
+            final Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) return 0;
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return (long) reader.getWidth(0) * (long) reader.getHeight(0) * 4;
+            } finally {
+                reader.dispose();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Identifies an image format from the magic number at the start of the file, regardless of its extension.
+     *
+     * @param data
+     * @return one of "jpeg", "png", "gif", "bmp", "tiff" or "webp", or <code>null</code> if unrecognized
+     */
+    public static String detectFormat(final ByteBuffer data) {
+        if (startsWith(data, 0, 0xFF, 0xD8, 0xFF)) return "jpeg";
+        if (startsWith(data, 0, 0x89, 'P', 'N', 'G')) return "png";
+        if (startsWith(data, 0, 'G', 'I', 'F', '8')) return "gif";
+        if (startsWith(data, 0, 'B', 'M')) return "bmp";
+        if (startsWith(data, 0, 'I', 'I', 0x2A, 0x00) || startsWith(data, 0, 'M', 'M', 0x00, 0x2A)) return "tiff";
+        if (startsWith(data, 0, 'R', 'I', 'F', 'F') && startsWith(data, 8, 'W', 'E', 'B', 'P')) return "webp";
+        return null;
+    }
+
+    /**
+     * The largest power-of-two reduction (up to 1/8) that still leaves an image at least as large as it will be
+     * shown when fitted within a requested size.
+     *
+     * @param imageWidth
+     * @param imageHeight
+     * @param width the width to fit within, or <code>0</code> for full resolution
+     * @param height the height to fit within, or <code>0</code> for full resolution
+     * @return 1, 2, 4 or 8
+     */
+    static int reductionFactor(final int imageWidth, final int imageHeight, final double width, final double height) {
+        if (width <= 0 || height <= 0 || imageWidth <= 0 || imageHeight <= 0) return 1;
+        final double scale = Math.min(width / imageWidth, height / imageHeight);
+        int factor = 1;
+        while (factor < 8 && factor * 2 * scale <= 1.0) factor *= 2;
+        return factor;
+    }
+
+    private static boolean startsWith(final ByteBuffer data, final int offset, final int... magic) {
+        if (data.remaining() < offset + magic.length) return false;
+        for (int i = 0; i < magic.length; i++) {
+            if ((data.get(data.position() + offset + i) & 0xff) != magic[i]) return false;
+        }
+        return true;
+    }
+}
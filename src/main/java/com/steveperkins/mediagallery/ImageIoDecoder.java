@@ -0,0 +1,72 @@
+package com.steveperkins.mediagallery;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <p>An {@link ImageDecoder} backed by an <code>javax.imageio</code> reader, for formats that JavaFX can't decode
+ * itself (e.g. TIFF, or WebP with a plugin on the classpath).  If no reader for the format is installed, this
+ * decoder claims no extensions and never accepts a file, so its format simply doesn't show up in the gallery.</p>
+ *
+ * <p>When a smaller size is requested, the reader is asked to subsample the source by a power of two, so that most
+ * of the pixels are never converted or stored.</p>
+ */
+public class ImageIoDecoder implements ImageDecoder {
+
+    private final String format;
+    private final List<String> extensions;
+
+    /**
+     * @param format the ImageIO format name, which must also be a name returned by
+     *               {@link ImageDecoders#detectFormat(ByteBuffer)}
+     * @param extensions
+     */
+    public ImageIoDecoder(final String format, final List<String> extensions) {
+        this.format = format;
+        this.extensions = Collections.unmodifiableList(extensions);
+    }
+
+    @Override
+    public List<String> extensions() {
+        return isAvailable() ? extensions : Collections.emptyList();
+    }
+
+    @Override
+    public boolean canDecode(final String format, final double width, final double height) {
+        return this.format.equals(format) && isAvailable();
+    }
+
+    @Override
+    public Image decode(final ByteBuffer data, final double width, final double height) throws IOException {
+        try (final ImageInputStream input = ImageIO.createImageInputStream(new ByteBufferInputStream(data))) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(format);
+            if (input == null || !readers.hasNext()) return null;
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final int factor = ImageDecoders.reductionFactor(reader.getWidth(0), reader.getHeight(0), width, height);
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                final BufferedImage image = reader.read(0, param);
+                return SwingFXUtils.toFXImage(image, null);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private boolean isAvailable() {
+        return ImageIO.getImageReadersByFormatName(format).hasNext();
+    }
+}
@@ -0,0 +1,39 @@
+package com.steveperkins.mediagallery;
+
+import javafx.scene.image.Image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The fallback {@link ImageDecoder}, which uses JavaFX's own built-in decoding for the formats it supports.
+ */
+public class JavaFxImageDecoder implements ImageDecoder {
+
+    private static final List<String> formats = Collections.unmodifiableList(Arrays.asList("bmp", "gif", "jpeg", "png"));
+    private static final List<String> extensions = Collections.unmodifiableList(Arrays.asList(".bmp", ".gif", ".jpg", ".png"));
+
+    @Override
+    public List<String> extensions() {
+        return extensions;
+    }
+
+    @Override
+    public boolean canDecode(final String format, final double width, final double height) {
+        return formats.contains(format);
+    }
+
+    @Override
+    public Image decode(final ByteBuffer data, final double width, final double height) throws IOException {
+        final Image image = width > 0 && height > 0
+                ? new Image(new ByteBufferInputStream(data), width, height, true, true)
+                : new Image(new ByteBufferInputStream(data));
+        if (image.isError()) {
+            throw new IOException("Could not decode image", image.getException());
+        }
+        return image;
+    }
+}
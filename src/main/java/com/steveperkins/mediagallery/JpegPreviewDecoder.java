@@ -0,0 +1,89 @@
+package com.steveperkins.mediagallery;
+
+import javafx.scene.image.Image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A fast path for JPEGs that are wanted at a fraction of their full size, e.g. scrubbing previews, or a photo
+ * far larger than the window it is fitted to.</p>
+ *
+ * <p>JPEG data can be decoded straight to 1/2, 1/4 or 1/8 scale by using fewer DCT coefficients per block, which is
+ * much cheaper than decoding at full resolution and then resampling.  JavaFX's native JPEG loader does this
+ * whenever the size it is asked for is exactly one of those fractions.  So this decoder reads the image dimensions
+ * from the JPEG frame header, picks the smallest such fraction that still fills the requested size, and asks for
+ * exactly that.  A 24 megapixel photo shown as a 320 pixel preview is never materialized at full resolution.</p>
+ *
+ * <p>Files that wouldn't shrink by at least half are declined, and left to {@link JavaFxImageDecoder}.</p>
+ */
+public class JpegPreviewDecoder implements ImageDecoder {
+
+    @Override
+    public List<String> extensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean canDecode(final String format, final double width, final double height) {
+        return "jpeg".equals(format) && width > 0 && height > 0;
+    }
+
+    @Override
+    public Image decode(final ByteBuffer data, final double width, final double height) throws IOException {
+        final int[] dimensions = frameDimensions(data);
+        if (dimensions == null) return null;
+        final int factor = ImageDecoders.reductionFactor(dimensions[0], dimensions[1], width, height);
+        if (factor == 1) return null;
+
+        // Rounding up matches the size of the scaled DCT output, so no resampling pass is needed
+        final int scaledWidth = (dimensions[0] + factor - 1) / factor;
+        final int scaledHeight = (dimensions[1] + factor - 1) / factor;
+        final Image image = new Image(new ByteBufferInputStream(data), scaledWidth, scaledHeight, true, false);
+        if (image.isError()) {
+            throw new IOException("Could not decode image", image.getException());
+        }
+        return image;
+    }
+
+    /**
+     * Finds the width and height in a JPEG's start-of-frame segment, by walking the segment headers from the start
+     * of the file.
+     *
+     * @param data
+     * @return <code>{ width, height }</code>, or <code>null</code> if no frame header was found
+     */
+    static int[] frameDimensions(final ByteBuffer data) {
+        // Absolute reads, relative to the start of the file, leave the buffer's position alone
+        final ByteBuffer bytes = data.slice();
+        final int end = bytes.limit();
+        int position = 2;
+        while (position + 4 <= end) {
+            if ((bytes.get(position) & 0xff) != 0xFF) return null;
+            final int marker = bytes.get(position + 1) & 0xff;
+            if (marker == 0xFF) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                // Standalone markers have no length
+                position += 2;
+                continue;
+            }
+            if (marker == 0xD9 || marker == 0xDA) return null;
+            final int length = ((bytes.get(position + 2) & 0xff) << 8) | (bytes.get(position + 3) & 0xff);
+            final boolean startOfFrame = marker >= 0xC0 && marker <= 0xCF
+                    && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+            if (startOfFrame && position + 9 <= end) {
+                final int height = ((bytes.get(position + 5) & 0xff) << 8) | (bytes.get(position + 6) & 0xff);
+                final int width = ((bytes.get(position + 7) & 0xff) << 8) | (bytes.get(position + 8) & 0xff);
+                return width > 0 && height > 0 ? new int[] { width, height } : null;
+            }
+            position += 2 + length;
+        }
+        return null;
+    }
+}
@@ -8,6 +8,8 @@ import javafx.scene.image.Image;
 import javafx.scene.input.KeyEvent;
 import javafx.stage.Stage;
 
+import java.io.IOException;
+
 /**
  * The main class and entry point for the JavaFX application.
  */
@@ -32,7 +34,20 @@ public class Main extends Application {
      */
     @Override
     public void start(Stage primaryStage) throws Exception {
-        final FXMLLoader loader = new FXMLLoader(getClass().getClassLoader().getResource("main.fxml"));
+        show(primaryStage, args);
+    }
+
+    /**
+     * The body of {@link #start(Stage)}, shared with the render latency harness so that it measures exactly the
+     * window that users get.
+     *
+     * @param primaryStage
+     * @param args
+     * @return the controller bound to the window
+     * @throws IOException
+     */
+    static Controller show(final Stage primaryStage, final String[] args) throws IOException {
+        final FXMLLoader loader = new FXMLLoader(Main.class.getClassLoader().getResource("main.fxml"));
         Controller controller = new Controller();
         controller.setArgs(args);
         controller.setStage(primaryStage);
@@ -42,9 +57,10 @@ public class Main extends Application {
         final Scene scene = new Scene(root);
         scene.addEventHandler(KeyEvent.KEY_PRESSED, controller::keyPressedEvent);
         primaryStage.setScene(scene);
-        primaryStage.getIcons().add(new Image(getClass().getResource("/icon.png").toString()));
+        primaryStage.getIcons().add(new Image(Main.class.getResource("/icon.png").toString()));
         primaryStage.setTitle("MediaGallery");
         primaryStage.show();
+        return controller;
     }
 
 }
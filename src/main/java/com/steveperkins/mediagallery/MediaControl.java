@@ -31,13 +31,16 @@
  */
 package com.steveperkins.mediagallery;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.beans.Observable;
 import javafx.beans.value.ObservableValue;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.geometry.Insets;
+import javafx.geometry.Point2D;
 import javafx.geometry.Pos;
+import javafx.geometry.Rectangle2D;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Control;
@@ -62,9 +65,19 @@ import javafx.util.Duration;
  * <p>This class is based upon the "Advanced Media" demo in "Ensemble8.jar", from the "Java SE Development Kit Demos
  * and Samples Downloads" on the main Oracle JDK downloads page.  The code has been somewhat refactored and
  * cleaned up.</p>
+ *
+ * <p>Dragging the time slider doesn't issue a seek for every change in its value.  Seeks are coalesced: while one
+ * is in progress, only the most recent target is remembered, and that is issued once the first finishes.  So the
+ * picture keeps up with the thumb even on long files where each seek is expensive.  Hovering over or dragging the
+ * slider also shows a preview frame for that position, from a {@link PreviewSprites} sheet built in the
+ * background.</p>
+ *
+ * <p>The control holds its own reference to the player through the {@link ResourceTracker}, and gives it up in
+ * {@link #dispose()}, which also closes the full-screen stage if the video is still showing there.</p>
  */
 public class MediaControl extends BorderPane {
 
+    private final ResourceTracker resourceTracker;
     private final MediaPlayer mediaPlayer;
     private final MediaView mediaView;
     private final Pane mediaViewPane;
@@ -78,27 +91,46 @@ public class MediaControl extends BorderPane {
     private boolean stopRequested = false;
     private boolean atEndOfMedia = false;
     private boolean fullScreen = false;
+    private boolean disposed = false;
+    private Runnable onEndOfMedia;
+
+    /** Seeks are treated as finished after this long, if the player never reports arriving. */
+    private static final Duration SEEK_TIMEOUT = Duration.millis(250);
+    /** How close the player's reported position must be to a seek target for the seek to count as finished. */
+    private static final Duration SEEK_TOLERANCE = Duration.seconds(1);
+    private final PauseTransition seekTimeout = new PauseTransition(SEEK_TIMEOUT);
+    private Duration seekTarget;
+    private Duration pendingSeek;
+
+    private final ImageView hoverPreview = new ImageView();
+    private PreviewSprites previewSprites;
+    /** Times the player's current status, for Java Flight Recorder. */
+    private Trace.Span statusSpan;
 
     /**
      * Constructs a <code>MediaControl</code> instance from a {@link MediaPlayer} object, with auto-repeat looping
      * disabled.
      *
+     * @param resourceTracker
      * @param mediaPlayer
      */
-    public MediaControl(final MediaPlayer mediaPlayer) {
-        this(mediaPlayer, false);
+    public MediaControl(final ResourceTracker resourceTracker, final MediaPlayer mediaPlayer) {
+        this(resourceTracker, mediaPlayer, false);
     }
 
     /**
      * Constructs a <code>MediaControl</code> instance from a {@link MediaPlayer} object, with a specified setting as
      * to whether or not the video will loop repeatedly.
      *
+     * @param resourceTracker
      * @param mediaPlayer
      * @param repeat
      */
-    public MediaControl(final MediaPlayer mediaPlayer, final boolean repeat) {
+    public MediaControl(final ResourceTracker resourceTracker, final MediaPlayer mediaPlayer, final boolean repeat) {
         // Main media player and controls bar layout
+        this.resourceTracker = resourceTracker;
         this.mediaPlayer = mediaPlayer;
+        resourceTracker.retain(mediaPlayer, this);
         mediaView = new MediaView(mediaPlayer);
         mediaViewPane = new Pane();
         mediaViewPane.getChildren().add(mediaView);
@@ -141,8 +173,12 @@ public class MediaControl extends BorderPane {
             }
         });
         mediaPlayer.currentTimeProperty().addListener((ObservableValue<? extends Duration> observable, Duration oldValue, Duration newValue) -> {
+            if (seekTarget != null && Math.abs(newValue.toMillis() - seekTarget.toMillis()) <= SEEK_TOLERANCE.toMillis()) {
+                seekFinished();
+            }
             updateValues();
         });
+        seekTimeout.setOnFinished(event -> seekFinished());
         mediaPlayer.setOnPlaying(() -> {
             if (stopRequested) {
                 mediaPlayer.pause();
@@ -157,6 +193,21 @@ public class MediaControl extends BorderPane {
         mediaPlayer.setOnReady(() -> {
             duration = mediaPlayer.getMedia().getDuration();
             updateValues();
+            if (previewSprites == null && mediaPlayer.getMedia().getWidth() > 0) {
+                previewSprites = new PreviewSprites(resourceTracker, mediaPlayer.getMedia());
+            }
+        });
+        // The player is disposed of once its last owner releases it (e.g. this control, on dispose()), so follow it
+        statusSpan = traceStatus(mediaPlayer.getStatus());
+        mediaPlayer.statusProperty().addListener((observable, oldStatus, newStatus) -> {
+            statusSpan.dimensions(mediaPlayer.getMedia().getWidth(), mediaPlayer.getMedia().getHeight())
+                    .mediaDuration(mediaPlayer.getMedia().getDuration())
+                    .end();
+            statusSpan = traceStatus(newStatus);
+            if (newStatus == MediaPlayer.Status.DISPOSED) {
+                statusSpan.end();
+                if (previewSprites != null) previewSprites.dispose();
+            }
         });
         mediaPlayer.setCycleCount(repeat ? MediaPlayer.INDEFINITE : 1);
         mediaPlayer.setOnEndOfMedia(() -> {
@@ -166,6 +217,9 @@ public class MediaControl extends BorderPane {
                 stopRequested = true;
                 atEndOfMedia = true;
             }
+            if (onEndOfMedia != null) {
+                onEndOfMedia.run();
+            }
         });
         mediaBar.getChildren().add(playButton);
 
@@ -183,14 +237,29 @@ public class MediaControl extends BorderPane {
             if (timeSlider.isValueChanging()) {
                 // multiply duration by percentage calculated by slider position
                 if (duration != null) {
-                    mediaPlayer.seek(duration.multiply(timeSlider.getValue() / 100.0));
+                    requestSeek(duration.multiply(timeSlider.getValue() / 100.0));
                 }
+                showHoverPreview(timeSlider.getValue() / 100.0);
                 updateValues();
 
             }
         });
+        timeSlider.valueChangingProperty().addListener((observable, wasChanging, isChanging) -> {
+            if (!isChanging && !timeSlider.isHover()) hideHoverPreview();
+        });
+        timeSlider.setOnMouseMoved(event -> showHoverPreview(event.getX() / timeSlider.getWidth()));
+        timeSlider.setOnMouseExited(event -> {
+            if (!timeSlider.isValueChanging()) hideHoverPreview();
+        });
         mediaBar.getChildren().add(timeSlider);
 
+        // Hover preview, floating over the bottom of the video
+        hoverPreview.setManaged(false);
+        hoverPreview.setVisible(false);
+        hoverPreview.setMouseTransparent(true);
+        hoverPreview.setStyle("-fx-effect: dropshadow(gaussian, black, 6, 0.5, 0, 0);");
+        mediaViewPane.getChildren().add(hoverPreview);
+
         // Time label
         playTime = new Label();
         playTime.setMinWidth(Control.USE_PREF_SIZE);
@@ -266,8 +335,7 @@ public class MediaControl extends BorderPane {
     }
 
     /**
-     * Exposes the {@link MediaPlayer} instance wrapped by this object.  {@link Controller} uses this to properly
-     * dispose of the player when switching to the next gallery item.
+     * Exposes the {@link MediaPlayer} instance wrapped by this object.
      *
      * @return
      */
@@ -275,6 +343,35 @@ public class MediaControl extends BorderPane {
         return mediaPlayer;
     }
 
+    /**
+     * Releases this control's reference to its player (disposing of the player, unless someone else still holds
+     * it), stops building preview frames, and closes the full-screen stage if there is one.  {@link Controller}
+     * calls this when switching to the next gallery item.
+     */
+    public void dispose() {
+        if (disposed) return;
+        disposed = true;
+        seekTimeout.stop();
+        if (newStage != null) {
+            fullScreen = false;
+            newStage.close();
+            newStage = null;
+        }
+        if (previewSprites != null) previewSprites.dispose();
+        resourceTracker.release(mediaPlayer, this);
+    }
+
+    /**
+     * Registers an additional callback for when the media reaches its end.  {@link MediaControl} claims the
+     * player's own {@link MediaPlayer#setOnEndOfMedia(Runnable)} handler, so callers such as {@link Slideshow}
+     * should use this instead.
+     *
+     * @param onEndOfMedia
+     */
+    public void setOnEndOfMedia(final Runnable onEndOfMedia) {
+        this.onEndOfMedia = onEndOfMedia;
+    }
+
     @Override
     protected void layoutChildren() {
         if (mediaView != null && getBottom() != null) {
@@ -318,11 +415,84 @@ public class MediaControl extends BorderPane {
         return Double.MAX_VALUE;
     }
 
+    /**
+     * Starts timing how long the player spends in a status (e.g. UNKNOWN, while the media is being opened, or
+     * STALLED, while buffering).
+     *
+     * @param status
+     * @return
+     */
+    private Trace.Span traceStatus(final MediaPlayer.Status status) {
+        final Trace.Span span = Trace.begin(Trace.Stage.PLAYER).path(mediaPlayer.getMedia().getSource());
+        if (status == MediaPlayer.Status.HALTED && mediaPlayer.getError() != null) {
+            return span.detail(status + ": " + mediaPlayer.getError().getMessage());
+        }
+        return span.detail(String.valueOf(status));
+    }
+
+    /**
+     * Seeks to a new position, unless a seek is already in progress.  In that case, the target is remembered (replacing
+     * any earlier one that was waiting), and issued once the current seek finishes.
+     *
+     * @param target
+     */
+    private void requestSeek(final Duration target) {
+        if (seekTarget != null) {
+            pendingSeek = target;
+            return;
+        }
+        seekTarget = target;
+        mediaPlayer.seek(target);
+        seekTimeout.playFromStart();
+    }
+
+    /**
+     * Called when the player reports arriving at the current seek target (or the seek has timed out), to issue the
+     * most recent target requested in the meantime.
+     */
+    private void seekFinished() {
+        if (seekTarget == null) return;
+        seekTarget = null;
+        seekTimeout.stop();
+        if (pendingSeek != null) {
+            final Duration next = pendingSeek;
+            pendingSeek = null;
+            requestSeek(next);
+        }
+    }
+
+    /**
+     * Shows the preview frame for a position on the time slider, just above that point on the slider.  Does nothing
+     * until the sprite sheet has at least one frame.
+     *
+     * @param fraction from <code>0.0</code> (the start) to <code>1.0</code> (the end)
+     */
+    private void showHoverPreview(final double fraction) {
+        final Rectangle2D viewport = previewSprites == null ? null : previewSprites.viewport(fraction);
+        if (viewport == null) {
+            hideHoverPreview();
+            return;
+        }
+        hoverPreview.setImage(previewSprites.getImage());
+        hoverPreview.setViewport(viewport);
+        final Point2D point = mediaViewPane.sceneToLocal(
+                timeSlider.localToScene(Math.max(0, Math.min(1, fraction)) * timeSlider.getWidth(), 0));
+        if (point == null) return;
+        final double x = point.getX() - viewport.getWidth() / 2;
+        hoverPreview.relocate(Math.max(0, Math.min(mediaViewPane.getWidth() - viewport.getWidth(), x)),
+                Math.max(0, mediaViewPane.getHeight() - viewport.getHeight() - 8));
+        hoverPreview.setVisible(true);
+    }
+
+    private void hideHoverPreview() {
+        hoverPreview.setVisible(false);
+    }
+
     /**
      * Switches the video to full-screen display.
      */
     private void onFullScreen() {
-        if (!newStage.isFullScreen()) {
+        if (newStage != null && !newStage.isFullScreen()) {
             fullScreen = false;
             BorderPane smallBP = (BorderPane) newStage.getScene().getRoot();
             smallBP.setCenter(null);
@@ -330,9 +500,9 @@ public class MediaControl extends BorderPane {
 
             smallBP.setBottom(null);
             setBottom(mediaBar);
-            Platform.runLater(() -> {
-                newStage.close();
-            });
+            final Stage closing = newStage;
+            newStage = null;
+            Platform.runLater(closing::close);
         }
     }
 
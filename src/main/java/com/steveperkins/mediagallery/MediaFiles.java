@@ -0,0 +1,288 @@
+package com.steveperkins.mediagallery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * <p>Reads the raw bytes of gallery items, so that decoding can happen separately (i.e. on a CPU pool thread, after
+ * the read has been done on an I/O pool thread).</p>
+ *
+ * <p>Items are returned as read-only {@link ByteBuffer}s, which decoders read from directly.  Plain files are
+ * memory-mapped, so their bytes go from the page cache to the decoder without ever being copied into the Java
+ * heap, and a file that is already cached by the OS costs no read at all.  On Windows, where a mapped file can't be
+ * renamed or deleted until its mapping is garbage collected (which would break culling), files are instead read
+ * with a single {@link FileChannel} read into a direct buffer.  Files smaller than {@link #MAP_THRESHOLD} are read
+ * into the heap, since mapping them would cost more than copying them, and archive entries are streamed out of
+ * their archive into the heap.</p>
+ *
+ * <p>Archive entries are read through the {@link ZipFile} that the archive was opened with by
+ * {@link #openArchive(File)}, so that its central directory is only read once however many entries are loaded.  The
+ * opener owns that file, and must {@link #closeArchive(ZipFile)} it once its items are gone from the gallery.  An
+ * entry of an archive that isn't open is read by opening the archive just for that read.</p>
+ *
+ * <p>The most recently mapped (or directly read) files are kept, up to {@link #REGION_CACHE_SIZE} files and
+ * {@link #REGION_CACHE_BYTES} in total, so that prefetching, scrubbing previews, the compare view and the render
+ * itself all share one mapping of the same file.  Direct buffers also count against the JVM's direct memory limit
+ * (which by default is only the maximum heap size), so when regions are direct buffers they are kept within a
+ * quarter of that limit instead, if it is smaller.  A file too large to be kept isn't, and if a direct buffer
+ * can't be allocated at all, the file is read into the heap instead.  A kept region is only reused if the file's size and modification
+ * time still match the item's.  Every caller gets its own view of the region, with its own position.  Kept regions
+ * are registered with the {@link MemoryGovernor} by {@link #register(MemoryGovernor)}, so that they are dropped along
+ * with the other caches under memory pressure.</p>
+ */
+public final class MediaFiles {
+
+    public static final int MAP_THRESHOLD = 64 * 1024;
+    public static final int REGION_CACHE_SIZE = 32;
+    public static final long REGION_CACHE_BYTES = 512L * 1024 * 1024;
+
+    private static final boolean MAPPING_LOCKS_FILES = File.separatorChar == '\\';
+    private static final long REGION_BUDGET = MAPPING_LOCKS_FILES
+            ? Math.min(REGION_CACHE_BYTES, maxDirectMemory() / 4)
+            : REGION_CACHE_BYTES;
+
+    /**
+     * A mapped or directly-read file, along with the attributes it was read with.
+     */
+    private static class Region {
+        private final ByteBuffer buffer;
+        private final long size;
+        private final long lastModified;
+
+        private Region(final ByteBuffer buffer, final long size, final long lastModified) {
+            this.buffer = buffer;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final Map<File, Region> regions = new LinkedHashMap<>(16, 0.75f, true);
+    private static long regionBytes = 0;
+    private static final Map<File, ZipFile> archives = new HashMap<>();
+
+    private MediaFiles() {
+    }
+
+    /**
+     * Reads an item's entire contents, reusing a kept mapping of the file if there is one.
+     *
+     * @param item
+     * @return a read-only buffer positioned at the start of the item, which the caller may consume freely
+     * @throws IOException
+     */
+    public static ByteBuffer read(final GalleryItem item) throws IOException {
+        final Trace.Span span = Trace.begin(Trace.Stage.READ).path(item.getItem()).size(item.getSize());
+        try {
+            if (item.isArchiveEntry()) {
+                span.detail("archive entry");
+                return readArchiveEntry(item);
+            }
+            final File file = item.getItem();
+            synchronized (regions) {
+                final Region region = regions.get(file);
+                if (region != null && region.size == item.getSize() && region.lastModified == item.getLastModified()) {
+                    span.cacheHit(true).detail("kept region");
+                    return region.buffer.asReadOnlyBuffer();
+                }
+            }
+            try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size > Integer.MAX_VALUE) throw new IOException("File too large: " + file);
+                if (size < MAP_THRESHOLD) {
+                    span.detail("heap");
+                    return readFully(channel, ByteBuffer.allocate((int) size)).asReadOnlyBuffer();
+                }
+                final ByteBuffer buffer;
+                if (MAPPING_LOCKS_FILES) {
+                    try {
+                        buffer = ByteBuffer.allocateDirect((int) size);
+                    } catch (OutOfMemoryError e) {
+                        // i.e. "Direct buffer memory": give back the kept regions, and use the heap this time
+                        clearRegions();
+                        span.detail("heap, direct memory exhausted");
+                        return readFully(channel, ByteBuffer.allocate((int) size)).asReadOnlyBuffer();
+                    }
+                    span.detail("direct");
+                    readFully(channel, buffer);
+                } else {
+                    span.detail("mapped");
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+                keep(file, new Region(buffer, item.getSize(), item.getLastModified()));
+                return buffer.asReadOnlyBuffer();
+            }
+        } finally {
+            span.end();
+        }
+    }
+
+    /**
+     * <p>Registers the kept regions with a {@link MemoryGovernor}, as a cache.</p>
+     *
+     * <p>Mapped and direct buffers live outside the heap, so dropping them releases no heap.  They are only counted
+     * in the governor's summary, and eviction reports nothing freed, so that the governor carries on to the caches
+     * that do hold heap.  But once the governor has got this far, dropping the regions still gives the address space
+     * (or direct memory) back at the next garbage collection, and the files are cheap to map again.</p>
+     *
+     * @param memoryGovernor
+     */
+    public static void register(final MemoryGovernor memoryGovernor) {
+        memoryGovernor.register("file regions", MemoryGovernor.Priority.CACHE, new MemoryGovernor.Evictable() {
+            @Override
+            public long footprint() {
+                synchronized (regions) {
+                    return regionBytes;
+                }
+            }
+
+            @Override
+            public long evict(final long bytes) {
+                synchronized (regions) {
+                    long dropped = 0;
+                    final Iterator<Region> iterator = regions.values().iterator();
+                    while (dropped < bytes && iterator.hasNext()) {
+                        dropped += iterator.next().buffer.capacity();
+                        iterator.remove();
+                    }
+                    regionBytes -= dropped;
+                }
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Fills a buffer from the start of a channel, and flips it ready for reading.
+     */
+    private static ByteBuffer readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        long position = 0;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("File truncated while reading");
+            position += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Opens an archive, and reads its entries through it until it is closed.
+     *
+     * @param archive
+     * @return the opened archive, which the caller must pass to {@link #closeArchive(ZipFile)} when done with it
+     * @throws IOException
+     */
+    public static ZipFile openArchive(final File archive) throws IOException {
+        final ZipFile zipFile = new ZipFile(archive);
+        synchronized (archives) {
+            archives.put(archive, zipFile);
+        }
+        return zipFile;
+    }
+
+    /**
+     * Closes an archive opened by {@link #openArchive(File)}.  A read of one of its entries that is still in
+     * progress fails.
+     *
+     * @param zipFile
+     */
+    public static void closeArchive(final ZipFile zipFile) {
+        synchronized (archives) {
+            final File archive = new File(zipFile.getName());
+            // The archive may have been opened again since, in which case the newer one stays open
+            if (archives.get(archive) == zipFile) archives.remove(archive);
+        }
+        try {
+            zipFile.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ByteBuffer readArchiveEntry(final GalleryItem item) throws IOException {
+        final ZipFile open;
+        synchronized (archives) {
+            open = archives.get(item.getArchive());
+        }
+        if (open != null) return readEntry(open, item);
+        try (final ZipFile zipFile = new ZipFile(item.getArchive())) {
+            return readEntry(zipFile, item);
+        }
+    }
+
+    private static ByteBuffer readEntry(final ZipFile zipFile, final GalleryItem item) throws IOException {
+        final ZipEntry entry = zipFile.getEntry(item.getEntryName());
+        if (entry == null) throw new IOException("No entry " + item.getEntryName() + " in " + zipFile.getName());
+        try (final InputStream input = zipFile.getInputStream(entry)) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.max(32, Math.min(item.getSize(), Integer.MAX_VALUE - 8)));
+            final byte[] buffer = new byte[64 * 1024];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                output.write(buffer, 0, read);
+            }
+            return ByteBuffer.wrap(output.toByteArray()).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Keeps a region for reuse, dropping the least recently used ones to stay within the limits.  Dropped regions
+     * are unmapped (or freed) by the garbage collector, once no caller is still reading them.
+     */
+    private static void keep(final File file, final Region region) {
+        synchronized (regions) {
+            if (region.buffer.capacity() > REGION_BUDGET) {
+                // Too large to keep, but any older region of the same file is stale now
+                final Region stale = regions.remove(file);
+                if (stale != null) regionBytes -= stale.buffer.capacity();
+                return;
+            }
+            final Region replaced = regions.put(file, region);
+            if (replaced != null) regionBytes -= replaced.buffer.capacity();
+            regionBytes += region.buffer.capacity();
+            final Iterator<Region> iterator = regions.values().iterator();
+            while ((regions.size() > REGION_CACHE_SIZE || regionBytes > REGION_BUDGET) && iterator.hasNext()) {
+                final Region eldest = iterator.next();
+                if (eldest == region) break;
+                regionBytes -= eldest.buffer.capacity();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void clearRegions() {
+        synchronized (regions) {
+            regions.clear();
+            regionBytes = 0;
+        }
+    }
+
+    /**
+     * The JVM's limit on direct buffers: <code>-XX:MaxDirectMemorySize</code> if it was given, or else the maximum
+     * heap size, which is what the JVM defaults to.
+     */
+    private static long maxDirectMemory() {
+        for (final String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-XX:MaxDirectMemorySize=")) continue;
+            final String value = argument.substring(argument.indexOf('=') + 1).trim().toLowerCase();
+            final int shift = value.endsWith("k") ? 10 : value.endsWith("m") ? 20 : value.endsWith("g") ? 30 : 0;
+            try {
+                return Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1)) << shift;
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+}
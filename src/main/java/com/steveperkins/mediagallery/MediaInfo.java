@@ -0,0 +1,105 @@
+package com.steveperkins.mediagallery;
+
+/**
+ * The duration, dimensions and codecs of an audio/video file, as read from its container headers by
+ * {@link MediaProbe}.  Values which a container doesn't carry are left as <code>-1</code> (numbers) or
+ * <code>null</code> (codec names).
+ */
+public class MediaInfo {
+
+    private final String format;
+    private final long durationMicros;
+    private final int width;
+    private final int height;
+    private final String videoCodec;
+    private final String audioCodec;
+    private final int sampleRate;
+    private final int channels;
+
+    MediaInfo(final String format, final long durationMicros, final int width, final int height,
+              final String videoCodec, final String audioCodec, final int sampleRate, final int channels) {
+        this.format = format;
+        this.durationMicros = durationMicros;
+        this.width = width;
+        this.height = height;
+        this.videoCodec = videoCodec;
+        this.audioCodec = audioCodec;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    /**
+     * The container format, e.g. "MP4", "WAV", "AIFF", "MP3" or "FLV".
+     *
+     * @return
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    public String getAudioCodec() {
+        return audioCodec;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public boolean hasVideo() {
+        return width > 0 && height > 0;
+    }
+
+    /**
+     * A compact one-line description, e.g. "1920x1080, 1:02:03, avc1/mp4a" or "0:42, 44100 Hz stereo".
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        if (hasVideo()) {
+            builder.append(width).append('x').append(height);
+        }
+        if (durationMicros >= 0) {
+            if (builder.length() > 0) builder.append(", ");
+            final long seconds = durationMicros / 1_000_000L;
+            if (seconds >= 3600) {
+                builder.append(String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60));
+            } else {
+                builder.append(String.format("%d:%02d", seconds / 60, seconds % 60));
+            }
+        }
+        if (videoCodec != null || audioCodec != null) {
+            if (builder.length() > 0) builder.append(", ");
+            if (videoCodec != null) builder.append(videoCodec);
+            if (videoCodec != null && audioCodec != null) builder.append('/');
+            if (audioCodec != null) builder.append(audioCodec);
+        } else if (sampleRate > 0) {
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(sampleRate).append(" Hz");
+            if (channels == 1) builder.append(" mono");
+            if (channels == 2) builder.append(" stereo");
+        }
+        return builder.toString();
+    }
+}
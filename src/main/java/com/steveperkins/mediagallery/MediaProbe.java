@@ -0,0 +1,428 @@
+package com.steveperkins.mediagallery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>Reads the duration, dimensions and codecs of the audio/video formats in {@link GalleryItem#videoExtensions}
+ * straight from their container headers, without creating a {@link javafx.scene.media.MediaPlayer}.  Only a few
+ * kilobytes are read per file (plus the "moov" atom for MP4 family files), so probing a whole directory of clips
+ * is cheap.</p>
+ *
+ * <ul>
+ *     <li>MP4/M4V/M4A: the "mvhd", "tkhd", "hdlr" and "stsd" atoms inside "moov"</li>
+ *     <li>WAV: the "fmt " and "data" chunks</li>
+ *     <li>AIFF/AIFC: the "COMM" chunk</li>
+ *     <li>MP3: the first frame header, plus any Xing/Info or VBRI header for variable bitrate files</li>
+ *     <li>FLV/FXM: the "onMetaData" script tag, falling back to the last tag's timestamp for the duration</li>
+ * </ul>
+ */
+public final class MediaProbe {
+
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+    private static final int MP3_SYNC_SEARCH = 64 * 1024;
+
+    private static final int[][] MP3_BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},  // MPEG-1 Layer I
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},     // MPEG-1 Layer II
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},      // MPEG-1 Layer III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},     // MPEG-2/2.5 Layer I
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}           // MPEG-2/2.5 Layer II & III
+    };
+    private static final int[][] MP3_SAMPLE_RATES = {
+            {11025, 12000, 8000},   // MPEG-2.5
+            {0, 0, 0},              // reserved
+            {22050, 24000, 16000},  // MPEG-2
+            {44100, 48000, 32000}   // MPEG-1
+    };
+
+    private MediaProbe() {
+    }
+
+    /**
+     * Probes an audio/video file, returning <code>null</code> if the file can't be read or its headers aren't
+     * recognized.
+     *
+     * @param file
+     * @return
+     */
+    public static MediaInfo probe(final File file) {
+        if (file == null) return null;
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = read(channel, 0, 12);
+            if (header.remaining() < 12) return null;
+            final String magic4 = fourCC(header, 0);
+            final String magic8 = fourCC(header, 8);
+            if (magic4.equals("RIFF") && magic8.equals("WAVE")) {
+                return probeWav(channel);
+            } else if (magic4.equals("FORM") && (magic8.equals("AIFF") || magic8.equals("AIFC"))) {
+                return probeAiff(channel);
+            } else if (magic4.startsWith("FLV")) {
+                return probeFlv(channel);
+            } else if (fourCC(header, 4).equals("ftyp")) {
+                return probeMp4(channel);
+            } else {
+                return probeMp3(channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Truncated or corrupt headers surface as buffer underflows and the like, and just mean "unknown"
+            return null;
+        }
+    }
+
+    /**
+     * Walks the top-level atoms to find "moov" (which may be before or after "mdat"), and parses it in memory.
+     */
+    private static MediaInfo probeMp4(final FileChannel channel) throws IOException {
+        long position = 0;
+        final long size = channel.size();
+        while (position + 8 <= size) {
+            final ByteBuffer header = read(channel, position, 16);
+            long atomSize = header.getInt(0) & 0xffffffffL;
+            final String type = fourCC(header, 4);
+            int headerSize = 8;
+            if (atomSize == 1) {
+                atomSize = header.getLong(8);
+                headerSize = 16;
+            } else if (atomSize == 0) {
+                atomSize = size - position;
+            }
+            if (atomSize < headerSize) return null;
+            if (type.equals("moov")) {
+                if (atomSize > MAX_MOOV_SIZE) return null;
+                final ByteBuffer moov = read(channel, position + headerSize, (int) (atomSize - headerSize));
+                return parseMoov(moov);
+            }
+            position += atomSize;
+        }
+        return null;
+    }
+
+    private static MediaInfo parseMoov(final ByteBuffer moov) {
+        long durationMicros = -1;
+        int width = -1;
+        int height = -1;
+        String videoCodec = null;
+        String audioCodec = null;
+        int sampleRate = -1;
+        int channels = -1;
+
+        for (int position = moov.position(); position + 8 <= moov.limit(); ) {
+            final int atomSize = moov.getInt(position);
+            final String type = fourCC(moov, position + 4);
+            if (atomSize < 8) break;
+            if (type.equals("mvhd")) {
+                final int version = moov.get(position + 8);
+                final long timescale = (moov.getInt(position + (version == 1 ? 28 : 20)) & 0xffffffffL);
+                final long duration = version == 1 ? moov.getLong(position + 32) : (moov.getInt(position + 24) & 0xffffffffL);
+                if (timescale > 0) durationMicros = duration * 1_000_000L / timescale;
+            } else if (type.equals("trak")) {
+                final ByteBuffer trak = slice(moov, position + 8, atomSize - 8);
+                final ByteBuffer tkhd = findAtom(trak, "tkhd");
+                final ByteBuffer mdia = findAtom(trak, "mdia");
+                final ByteBuffer hdlr = mdia == null ? null : findAtom(mdia, "hdlr");
+                final String handler = hdlr == null ? "" : fourCC(hdlr, hdlr.position() + 8);
+                final ByteBuffer minf = mdia == null ? null : findAtom(mdia, "minf");
+                final ByteBuffer stbl = minf == null ? null : findAtom(minf, "stbl");
+                final ByteBuffer stsd = stbl == null ? null : findAtom(stbl, "stsd");
+                // stsd: version/flags(4), entry count(4), then the first sample entry's size(4) and format(4)
+                final String codec = stsd == null ? null : fourCC(stsd, stsd.position() + 12).trim();
+                if (handler.equals("vide") && tkhd != null) {
+                    final int version = tkhd.get(tkhd.position());
+                    final int dimensions = tkhd.position() + (version == 1 ? 88 : 76);
+                    width = tkhd.getInt(dimensions) >>> 16;
+                    height = tkhd.getInt(dimensions + 4) >>> 16;
+                    videoCodec = codec;
+                } else if (handler.equals("soun")) {
+                    audioCodec = codec;
+                    if (stsd != null) {
+                        // Audio sample entry: 8 bytes of entry header, 8 reserved/index, 8 reserved, then
+                        // channel count(2), sample size(2), pre-defined(2), reserved(2), sample rate(16.16)
+                        final int entry = stsd.position() + 8;
+                        channels = stsd.getShort(entry + 24);
+                        sampleRate = stsd.getInt(entry + 32) >>> 16;
+                    }
+                }
+            }
+            position += atomSize;
+        }
+        return new MediaInfo("MP4", durationMicros, width, height, videoCodec, audioCodec, sampleRate, channels);
+    }
+
+    /**
+     * Finds a child atom within a container atom's payload, returning a buffer positioned at the child's payload.
+     */
+    private static ByteBuffer findAtom(final ByteBuffer container, final String type) {
+        for (int position = container.position(); position + 8 <= container.limit(); ) {
+            final int atomSize = container.getInt(position);
+            if (atomSize < 8) return null;
+            if (fourCC(container, position + 4).equals(type)) {
+                return slice(container, position + 8, Math.min(atomSize - 8, container.limit() - position - 8));
+            }
+            position += atomSize;
+        }
+        return null;
+    }
+
+    private static MediaInfo probeWav(final FileChannel channel) throws IOException {
+        int channels = -1;
+        int sampleRate = -1;
+        long byteRate = -1;
+        long dataSize = -1;
+        String codec = null;
+
+        long position = 12;
+        while (position + 8 <= channel.size() && (byteRate < 0 || dataSize < 0)) {
+            final ByteBuffer chunk = read(channel, position, 24).order(ByteOrder.LITTLE_ENDIAN);
+            final String id = fourCC(chunk, 0);
+            final long chunkSize = chunk.getInt(4) & 0xffffffffL;
+            if (id.equals("fmt ")) {
+                final int formatTag = chunk.getShort(8) & 0xffff;
+                codec = formatTag == 1 ? "pcm" : formatTag == 3 ? "float" : String.format("0x%04x", formatTag);
+                channels = chunk.getShort(10);
+                sampleRate = chunk.getInt(12);
+                byteRate = chunk.getInt(16) & 0xffffffffL;
+            } else if (id.equals("data")) {
+                dataSize = Math.min(chunkSize, channel.size() - position - 8);
+            }
+            // Chunks are padded to an even length
+            position += 8 + chunkSize + (chunkSize & 1);
+        }
+        final long durationMicros = byteRate > 0 && dataSize >= 0 ? dataSize * 1_000_000L / byteRate : -1;
+        return new MediaInfo("WAV", durationMicros, -1, -1, null, codec, sampleRate, channels);
+    }
+
+    private static MediaInfo probeAiff(final FileChannel channel) throws IOException {
+        final boolean compressed = fourCC(read(channel, 8, 4), 0).equals("AIFC");
+        long position = 12;
+        while (position + 8 <= channel.size()) {
+            final ByteBuffer chunk = read(channel, position, 34);
+            final String id = fourCC(chunk, 0);
+            final long chunkSize = chunk.getInt(4) & 0xffffffffL;
+            if (id.equals("COMM")) {
+                final int channels = chunk.getShort(8);
+                final long frames = chunk.getInt(10) & 0xffffffffL;
+                final double sampleRate = extended(chunk, 16);
+                final String codec = compressed && chunk.remaining() >= 30 ? fourCC(chunk, 26).trim() : "pcm";
+                final long durationMicros = sampleRate > 0 ? (long) (frames * 1_000_000L / sampleRate) : -1;
+                return new MediaInfo("AIFF", durationMicros, -1, -1, null, codec, (int) sampleRate, channels);
+            }
+            position += 8 + chunkSize + (chunkSize & 1);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes an 80-bit IEEE 754 extended precision float, as used for the AIFF sample rate.
+     */
+    private static double extended(final ByteBuffer buffer, final int offset) {
+        final int exponent = ((buffer.get(offset) & 0x7f) << 8) | (buffer.get(offset + 1) & 0xff);
+        final long mantissa = buffer.getLong(offset + 2);
+        if (exponent == 0 && mantissa == 0) return 0;
+        // The mantissa is unsigned with an explicit integer bit, so shift it down one to keep it positive
+        final double value = (mantissa >>> 1) * Math.pow(2, exponent - 16383 - 62);
+        return (buffer.get(offset) & 0x80) != 0 ? -value : value;
+    }
+
+    private static MediaInfo probeMp3(final FileChannel channel) throws IOException {
+        // Skip an ID3v2 tag, whose size is stored as a 28-bit "syncsafe" integer
+        long audioStart = 0;
+        final ByteBuffer id3 = read(channel, 0, 10);
+        if (id3.remaining() == 10 && id3.get(0) == 'I' && id3.get(1) == 'D' && id3.get(2) == '3') {
+            final int tagSize = ((id3.get(6) & 0x7f) << 21) | ((id3.get(7) & 0x7f) << 14)
+                    | ((id3.get(8) & 0x7f) << 7) | (id3.get(9) & 0x7f);
+            audioStart = 10 + tagSize + ((id3.get(5) & 0x10) != 0 ? 10 : 0);
+        }
+
+        final ByteBuffer search = read(channel, audioStart, MP3_SYNC_SEARCH);
+        for (int i = search.position(); i + 4 <= search.limit(); i++) {
+            final int header = search.getInt(i);
+            if ((header >>> 21) != 0x7ff) continue;
+            final int version = (header >>> 19) & 3;
+            final int layer = (header >>> 17) & 3;
+            final int bitrateIndex = (header >>> 12) & 0xf;
+            final int sampleRateIndex = (header >>> 10) & 3;
+            if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) continue;
+
+            final boolean mpeg1 = version == 3;
+            final boolean mono = ((header >>> 6) & 3) == 3;
+            final int sampleRate = MP3_SAMPLE_RATES[version][sampleRateIndex];
+            final int table = mpeg1 ? 3 - layer : (layer == 3 ? 3 : 4);
+            final int bitrate = MP3_BITRATES[table][bitrateIndex] * 1000;
+            final int samplesPerFrame = layer == 3 ? 384 : (layer == 1 && !mpeg1 ? 576 : 1152);
+            final String codec = layer == 3 ? "mp1" : layer == 2 ? "mp2" : "mp3";
+
+            // A Xing/Info header follows the side information in the first frame of most VBR encodes
+            final int xing = i + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+            long frames = -1;
+            if (xing + 12 <= search.limit()) {
+                final String tag = fourCC(search, xing);
+                if ((tag.equals("Xing") || tag.equals("Info")) && (search.getInt(xing + 4) & 1) != 0) {
+                    frames = search.getInt(xing + 8) & 0xffffffffL;
+                }
+            }
+            // ...whereas Fraunhofer's VBRI header is always 32 bytes after the frame header
+            if (frames < 0 && i + 4 + 32 + 18 <= search.limit() && fourCC(search, i + 4 + 32).equals("VBRI")) {
+                frames = search.getInt(i + 4 + 32 + 14) & 0xffffffffL;
+            }
+
+            final long durationMicros = frames >= 0
+                    ? frames * samplesPerFrame * 1_000_000L / sampleRate
+                    : (channel.size() - audioStart - (i - search.position())) * 8_000_000L / bitrate;
+            return new MediaInfo("MP3", durationMicros, -1, -1, null, codec, sampleRate, mono ? 1 : 2);
+        }
+        return null;
+    }
+
+    private static MediaInfo probeFlv(final FileChannel channel) throws IOException {
+        final ByteBuffer header = read(channel, 0, 9);
+        final long dataOffset = header.getInt(5) & 0xffffffffL;
+
+        double duration = -1;
+        int width = -1;
+        int height = -1;
+        String videoCodec = null;
+        String audioCodec = null;
+
+        // The first tag (after the 4-byte PreviousTagSize0) is normally the "onMetaData" script tag
+        final ByteBuffer tag = read(channel, dataOffset + 4, 11);
+        if (tag.remaining() == 11 && tag.get(0) == 18) {
+            final int dataSize = ((tag.get(1) & 0xff) << 16) | ((tag.get(2) & 0xff) << 8) | (tag.get(3) & 0xff);
+            final ByteBuffer script = read(channel, dataOffset + 4 + 11, dataSize);
+            if (script.get() == 2 && readAmfString(script).equals("onMetaData")) {
+                final int type = script.get();
+                if (type == 8) script.getInt();  // ECMA array count, which is only a hint
+                if (type == 3 || type == 8) {
+                    for (String key = readAmfString(script); !key.isEmpty(); key = readAmfString(script)) {
+                        final Object value = readAmfValue(script);
+                        if (!(value instanceof Double)) continue;
+                        final double number = (Double) value;
+                        switch (key) {
+                            case "duration": duration = number; break;
+                            case "width": width = (int) number; break;
+                            case "height": height = (int) number; break;
+                            case "videocodecid": videoCodec = flvVideoCodec((int) number); break;
+                            case "audiocodecid": audioCodec = flvAudioCodec((int) number); break;
+                            default: break;
+                        }
+                    }
+                }
+            }
+        }
+
+        long durationMicros = duration >= 0 ? (long) (duration * 1_000_000L) : -1;
+        if (durationMicros < 0 && channel.size() > dataOffset + 8) {
+            // No metadata, so use the timestamp of the last tag, found through the trailing PreviousTagSize
+            final long lastTagSize = read(channel, channel.size() - 4, 4).getInt(0) & 0xffffffffL;
+            final ByteBuffer last = read(channel, channel.size() - 4 - lastTagSize, 8);
+            if (last.remaining() == 8) {
+                final long timestamp = ((last.get(4) & 0xffL) << 16) | ((last.get(5) & 0xffL) << 8)
+                        | (last.get(6) & 0xffL) | ((last.get(7) & 0xffL) << 24);
+                durationMicros = timestamp * 1000L;
+            }
+        }
+        return new MediaInfo("FLV", durationMicros, width, height, videoCodec, audioCodec, -1, -1);
+    }
+
+    private static String readAmfString(final ByteBuffer buffer) {
+        final int length = buffer.getShort() & 0xffff;
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        if (length == 0 && buffer.remaining() > 0 && buffer.get(buffer.position()) == 9) {
+            buffer.get();  // object end marker
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads one AMF0 value.  Only numbers are returned; other values are skipped over and returned as
+     * <code>null</code>.
+     */
+    private static Object readAmfValue(final ByteBuffer buffer) {
+        final int type = buffer.get();
+        switch (type) {
+            case 0:
+                return buffer.getDouble();
+            case 1:
+                buffer.get();
+                return null;
+            case 2:
+                readAmfString(buffer);
+                return null;
+            case 3:
+            case 8:
+                if (type == 8) buffer.getInt();
+                for (String key = readAmfString(buffer); !key.isEmpty(); key = readAmfString(buffer)) {
+                    readAmfValue(buffer);
+                }
+                return null;
+            case 10:
+                for (int count = buffer.getInt(); count > 0; count--) {
+                    readAmfValue(buffer);
+                }
+                return null;
+            case 11:
+                buffer.position(buffer.position() + 10);
+                return null;
+            case 12:
+                buffer.position(buffer.position() + buffer.getInt());
+                return null;
+            case 5:
+            case 6:
+                return null;
+            default:
+                throw new IllegalStateException("Unsupported AMF0 type " + type);
+        }
+    }
+
+    private static String flvVideoCodec(final int id) {
+        switch (id) {
+            case 2: return "h263";
+            case 3: return "screen";
+            case 4: return "vp6";
+            case 5: return "vp6a";
+            case 7: return "avc1";
+            default: return String.valueOf(id);
+        }
+    }
+
+    private static String flvAudioCodec(final int id) {
+        switch (id) {
+            case 0: return "pcm";
+            case 2: return "mp3";
+            case 3: return "pcm";
+            case 10: return "mp4a";
+            default: return String.valueOf(id);
+        }
+    }
+
+    /**
+     * Reads up to <code>length</code> bytes at a given file position.  The returned buffer is big-endian and may
+     * hold fewer bytes than requested at the end of the file.
+     */
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - position)));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) break;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.limit(offset + length).position(offset);
+        return duplicate.slice();
+    }
+
+    private static String fourCC(final ByteBuffer buffer, final int offset) {
+        final byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) bytes[i] = buffer.get(offset + i);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,203 @@
+package com.steveperkins.mediagallery;
+
+import javafx.application.Platform;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>The single owner of heap budgeting for every cache, prefetch queue and buffer pool in the application.</p>
+ *
+ * <p>Each cache registers itself as an {@link Evictable}, with a {@link Priority}.  When the JVM reports that a
+ * heap pool has crossed its usage threshold (through the {@link MemoryPoolMXBean} notification mechanism), or when
+ * a large decode is about to happen via {@link #reserve(long)}, the governor asks caches to give memory back in
+ * priority order: speculative prefetch first, the currently-rendered item last.</p>
+ *
+ * <p>Registered caches are only touched on the JavaFX application thread.  Threshold notifications arrive on a
+ * JMX thread, and are handed over with {@link Platform#runLater(Runnable)}.</p>
+ */
+public class MemoryGovernor {
+
+    /**
+     * Eviction order, from first to be evicted to last.
+     */
+    public enum Priority {
+        PREFETCH, THUMBNAIL, CACHE, RENDERED
+    }
+
+    /**
+     * A cache or buffer pool that can give memory back on request.
+     */
+    public interface Evictable {
+        /**
+         * An estimate of the heap bytes currently held.
+         *
+         * @return
+         */
+        long footprint();
+
+        /**
+         * Releases at least <code>bytes</code> if possible (or as much as possible otherwise).
+         *
+         * @param bytes
+         * @return an estimate of the heap bytes actually released
+         */
+        long evict(long bytes);
+    }
+
+    /** Heap usage (as a fraction of the maximum) at which the JVM should notify us. */
+    private static final double USAGE_THRESHOLD = 0.80;
+    /** Heap usage that eviction tries to get back down to. */
+    private static final double TARGET_USAGE = 0.60;
+    /** Heap usage above which prefetching should be scaled back. */
+    private static final double PRESSURE_USAGE = 0.70;
+
+    private static class Registration {
+        private final String name;
+        private final Priority priority;
+        private final Evictable evictable;
+
+        private Registration(final String name, final Priority priority, final Evictable evictable) {
+            this.name = name;
+            this.priority = priority;
+            this.evictable = evictable;
+        }
+    }
+
+    private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+    private final NotificationListener listener = this::handleNotification;
+
+    /**
+     * Arms the usage thresholds on every heap pool that supports them, and starts listening for notifications.
+     */
+    public MemoryGovernor() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            final long max = pool.getUsage().getMax();
+            if (pool.getType() != MemoryType.HEAP || max <= 0) continue;
+            if (pool.isUsageThresholdSupported()) {
+                pool.setUsageThreshold((long) (max * USAGE_THRESHOLD));
+            }
+            if (pool.isCollectionUsageThresholdSupported()) {
+                pool.setCollectionUsageThreshold((long) (max * TARGET_USAGE));
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+    }
+
+    /**
+     * Registers a cache to be evicted under memory pressure.
+     *
+     * @param name a short description, for diagnostics
+     * @param priority
+     * @param evictable
+     */
+    public void register(final String name, final Priority priority, final Evictable evictable) {
+        registrations.add(new Registration(name, priority, evictable));
+    }
+
+    public void unregister(final Evictable evictable) {
+        registrations.removeIf(registration -> registration.evictable == evictable);
+    }
+
+    /**
+     * <p>Called before allocating a large block (typically a decoded image), to make room for it.  If the heap
+     * can't comfortably hold the allocation, caches are evicted in priority order, stopping short of the
+     * currently-rendered item.</p>
+     *
+     * @param bytes
+     * @return <code>true</code> if the allocation should fit, or <code>false</code> if the caller should fall back
+     * to something smaller (e.g. a downscaled decode)
+     */
+    public boolean reserve(final long bytes) {
+        final Runtime runtime = Runtime.getRuntime();
+        final long headroom = (long) (runtime.maxMemory() * (1.0 - TARGET_USAGE) / 2);
+        final long available = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        if (bytes + headroom <= available) return true;
+        final long freed = evict(bytes + headroom - available, Priority.CACHE);
+        return bytes + headroom <= available + freed;
+    }
+
+    /**
+     * Whether heap usage is high enough that speculative work (i.e. prefetching) should be scaled back.
+     *
+     * @return
+     */
+    public boolean isUnderPressure() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() > runtime.maxMemory() * PRESSURE_USAGE;
+    }
+
+    /**
+     * The combined footprint of every registered cache.
+     *
+     * @return
+     */
+    public long footprint() {
+        long total = 0;
+        for (final Registration registration : registrations) {
+            total += registration.evictable.footprint();
+        }
+        return total;
+    }
+
+    /**
+     * A one-line breakdown of registered cache footprints, e.g. "slideshow prefetch 48 MB, rendered image 32 MB".
+     *
+     * @return
+     */
+    public String summary() {
+        final StringBuilder builder = new StringBuilder();
+        for (final Registration registration : registrations) {
+            if (builder.length() > 0) builder.append(", ");
+            builder.append(registration.name).append(' ')
+                    .append(registration.evictable.footprint() / (1024 * 1024)).append(" MB");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Evicts registered caches, lowest priority first, until the requested number of bytes has been released.
+     *
+     * @param bytes
+     * @param highest the highest priority that may be evicted
+     * @return the estimated number of bytes released
+     */
+    private long evict(final long bytes, final Priority highest) {
+        long freed = 0;
+        for (final Priority priority : Priority.values()) {
+            if (priority.compareTo(highest) > 0) break;
+            for (final Registration registration : registrations) {
+                if (freed >= bytes) return freed;
+                if (registration.priority == priority && registration.evictable.footprint() > 0) {
+                    freed += registration.evictable.evict(bytes - freed);
+                }
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Handles heap usage threshold notifications, which arrive on a JMX thread.
+     */
+    private void handleNotification(final Notification notification, final Object handback) {
+        if (!MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(notification.getType())
+                && !MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+            return;
+        }
+        Platform.runLater(() -> {
+            final Runtime runtime = Runtime.getRuntime();
+            final long used = runtime.totalMemory() - runtime.freeMemory();
+            final long target = (long) (runtime.maxMemory() * TARGET_USAGE);
+            if (used > target) {
+                evict(used - target, Priority.RENDERED);
+            }
+        });
+    }
+}
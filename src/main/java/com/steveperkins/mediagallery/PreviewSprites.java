@@ -0,0 +1,186 @@
+package com.steveperkins.mediagallery;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.Image;
+import javafx.scene.image.WritableImage;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaPlayer;
+import javafx.scene.media.MediaView;
+import javafx.util.Duration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>A sprite sheet of small preview frames spread evenly across a video, for showing where the time slider would
+ * seek to while hovering over it or dragging it.</p>
+ *
+ * <p>JavaFX has no API for extracting frames, so the sheet is built with a second, muted {@link MediaPlayer} on the
+ * same {@link Media}, which is never shown: it is stepped through the video one seek at a time, and its
+ * {@link MediaView} is snapshotted into the next tile.  Decoding happens on the media framework's own threads, and
+ * each step only costs the JavaFX thread a tiny snapshot, so the sheet fills in gradually without disturbing
+ * playback.  Frames are taken coarse-to-fine (a few spread across the whole video first, then the gaps between
+ * them, and so on), so that rough previews are available everywhere within the first second or two.</p>
+ *
+ * <p>Once every frame has been taken, the second player is released through the {@link ResourceTracker} (which
+ * keeps the shared media open until the main player has been released too).  Audio-only media never gets a
+ * sheet.</p>
+ */
+public class PreviewSprites {
+
+    public static final int TILE_WIDTH = 160;
+
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 10;
+    private static final int FRAMES = COLUMNS * ROWS;
+    private static final Duration STEP_INTERVAL = Duration.millis(100);
+    /** How close the player's reported position must be to a seek target before its frame is trusted. */
+    private static final Duration SEEK_TOLERANCE = Duration.seconds(2);
+    private static final int MAX_WAIT_STEPS = 5;
+
+    private final ResourceTracker resourceTracker;
+    private final MediaPlayer player;
+    private final MediaView view;
+    private final Timeline timeline;
+    private final boolean[] built = new boolean[FRAMES];
+    private final int[] order = coarseToFine();
+
+    private WritableImage sheet;
+    private int tileHeight;
+    private Duration duration;
+    private int next = 0;
+    private int pending = -1;
+    private int waited = 0;
+    private boolean disposed = false;
+
+    /**
+     * Starts building a sprite sheet in the background, as soon as the media is ready.
+     *
+     * @param resourceTracker
+     * @param media
+     */
+    public PreviewSprites(final ResourceTracker resourceTracker, final Media media) {
+        this.resourceTracker = resourceTracker;
+        player = resourceTracker.openPlayer(media, this);
+        player.setMute(true);
+        player.setAutoPlay(false);
+        view = new MediaView(player);
+        view.setPreserveRatio(false);
+        timeline = new Timeline(new KeyFrame(STEP_INTERVAL, event -> step()));
+        timeline.setCycleCount(Animation.INDEFINITE);
+        player.setOnReady(() -> {
+            duration = media.getDuration();
+            if (disposed || media.getWidth() <= 0 || media.getHeight() <= 0
+                    || duration.isUnknown() || duration.isIndefinite() || duration.lessThanOrEqualTo(Duration.ZERO)) {
+                dispose();
+                return;
+            }
+            tileHeight = Math.max(1, (int) Math.round(TILE_WIDTH * media.getHeight() / (double) media.getWidth()));
+            view.setFitWidth(TILE_WIDTH);
+            view.setFitHeight(tileHeight);
+            sheet = new WritableImage(TILE_WIDTH * COLUMNS, tileHeight * ROWS);
+            timeline.play();
+        });
+    }
+
+    /**
+     * The sprite sheet image, or <code>null</code> if there is none (yet).
+     *
+     * @return
+     */
+    public Image getImage() {
+        return sheet;
+    }
+
+    public int getTileHeight() {
+        return tileHeight;
+    }
+
+    /**
+     * The region of the sprite sheet holding the frame nearest a given position in the video, among the frames
+     * taken so far.
+     *
+     * @param fraction from <code>0.0</code> (the start) to <code>1.0</code> (the end)
+     * @return <code>null</code> if no frames have been taken yet
+     */
+    public Rectangle2D viewport(final double fraction) {
+        if (sheet == null) return null;
+        final int wanted = Math.max(0, Math.min(FRAMES - 1, (int) (fraction * FRAMES)));
+        for (int distance = 0; distance < FRAMES; distance++) {
+            for (final int frame : new int[] { wanted - distance, wanted + distance }) {
+                if (frame >= 0 && frame < FRAMES && built[frame]) {
+                    return new Rectangle2D((frame % COLUMNS) * TILE_WIDTH, (frame / COLUMNS) * tileHeight,
+                            TILE_WIDTH, tileHeight);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops building, and releases the second player.  The frames taken so far remain usable.
+     */
+    public void dispose() {
+        if (disposed) return;
+        disposed = true;
+        timeline.stop();
+        resourceTracker.release(player, this);
+    }
+
+    /**
+     * One tick of the build: snapshots the frame for the previous seek (once the player has got there), then seeks
+     * to the next frame.
+     */
+    private void step() {
+        if (disposed) return;
+        if (pending >= 0) {
+            final Duration target = frameTime(pending);
+            final boolean arrived = Math.abs(player.getCurrentTime().toMillis() - target.toMillis()) <= SEEK_TOLERANCE.toMillis();
+            if (!arrived && ++waited < MAX_WAIT_STEPS) return;
+            if (arrived) {
+                final WritableImage tile = view.snapshot(new SnapshotParameters(), null);
+                final int width = (int) Math.min(TILE_WIDTH, tile.getWidth());
+                final int height = (int) Math.min(tileHeight, tile.getHeight());
+                sheet.getPixelWriter().setPixels((pending % COLUMNS) * TILE_WIDTH, (pending / COLUMNS) * tileHeight,
+                        width, height, tile.getPixelReader(), 0, 0);
+                built[pending] = true;
+            }
+            pending = -1;
+            waited = 0;
+        }
+        if (next >= order.length) {
+            dispose();
+            return;
+        }
+        pending = order[next++];
+        player.seek(frameTime(pending));
+    }
+
+    /**
+     * The middle of the stretch of video that a frame represents.
+     */
+    private Duration frameTime(final int frame) {
+        return duration.multiply((frame + 0.5) / FRAMES);
+    }
+
+    /**
+     * Every frame index, ordered so that each prefix of the order is spread evenly across the video.
+     */
+    private static int[] coarseToFine() {
+        final boolean[] added = new boolean[FRAMES];
+        final List<Integer> order = new ArrayList<>(FRAMES);
+        for (int stride = Integer.highestOneBit(FRAMES); stride >= 1; stride /= 2) {
+            for (int frame = 0; frame < FRAMES; frame += stride) {
+                if (!added[frame]) {
+                    added[frame] = true;
+                    order.add(frame);
+                }
+            }
+        }
+        return order.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,309 @@
+package com.steveperkins.mediagallery;
+
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.scene.Node;
+import javafx.scene.image.Image;
+import javafx.scene.media.Media;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Reference counts the resources that hold native memory: every {@link MediaPlayer} and {@link Media}, and
+ * every {@link Image} of at least {@link #LARGE_IMAGE_BYTES}.</p>
+ *
+ * <p>Each reference to a resource is held on behalf of an owner (i.e. the {@link MediaControl} showing a player,
+ * or the {@link Slideshow.Slide} that pre-rolled it).  Whoever creates a resource holds the first reference, and
+ * may hand it on by having the new owner {@link #retain(Object, Object)} it before it calls
+ * {@link #release(Object, Object)} itself.  When the last reference is released, the resource is disposed of
+ * there and then: a player is {@link MediaPlayer#dispose()}d (which releases its {@link Media} in turn), and the
+ * tracker lets go of media and images so that nothing but the scene graph can keep them alive.</p>
+ *
+ * <p>Owners are only held weakly.  If an owner is garbage collected while it still holds a reference, the
+ * reference is a leak: a warning is printed, the leak is counted in {@link #reportProperty()}, and the reference is
+ * released on the owner's behalf, so that a missed release costs one garbage collection cycle rather than a native
+ * player for the rest of the session.  Leaks are swept up every {@link #SWEEP_INTERVAL}.</p>
+ *
+ * <p>An owner that is a {@link Node} (i.e. a {@link MediaControl}) and has been out of any scene for two sweeps in a
+ * row is only reported, with a warning and a count in {@link #reportProperty()}, since it may have been detached on
+ * purpose to be shown again later.  Its references are left alone until it releases them, or is collected.</p>
+ *
+ * <p>Like the gallery itself, this class is only touched from the JavaFX application thread.</p>
+ */
+public class ResourceTracker {
+
+    public enum Kind {
+        PLAYER("players"), MEDIA("media"), IMAGE("large images");
+
+        private final String plural;
+
+        Kind(final String plural) {
+            this.plural = plural;
+        }
+    }
+
+    /** Decoded images at least this large are tracked (i.e. 2048x1024, at 32 bits per pixel). */
+    public static final long LARGE_IMAGE_BYTES = 8L * 1024 * 1024;
+    public static final Duration SWEEP_INTERVAL = Duration.seconds(10);
+    /** More live players than this suggests that references are piling up, even if their owners are alive. */
+    private static final int PLAYER_WARNING_THRESHOLD = 8;
+
+    /**
+     * A resource, along with everyone holding a reference to it.
+     */
+    private static class Tracked {
+        private final Object resource;
+        private final Kind kind;
+        private final String description;
+        private final long created = System.nanoTime();
+        private final List<Owner> owners = new ArrayList<>();
+
+        private Tracked(final Object resource, final Kind kind, final String description) {
+            this.resource = resource;
+            this.kind = kind;
+            this.description = description;
+        }
+    }
+
+    /**
+     * One reference to a resource, held on behalf of an owner that may be garbage collected without releasing it.
+     */
+    private static class Owner extends WeakReference<Object> {
+        private final Tracked tracked;
+        private final String description;
+        /** Set when a node owner was found outside any scene, so that it is reported if it still is next time. */
+        private boolean detached = false;
+        /** Set once a node owner has been reported as detached, until it is back in a scene. */
+        private boolean reported = false;
+
+        private Owner(final Object owner, final Tracked tracked, final ReferenceQueue<Object> queue) {
+            super(owner, queue);
+            this.tracked = tracked;
+            this.description = owner.getClass().getSimpleName();
+        }
+    }
+
+    private final Map<Object, Tracked> tracked = new IdentityHashMap<>();
+    private final ReferenceQueue<Object> collectedOwners = new ReferenceQueue<>();
+    private final int[] live = new int[Kind.values().length];
+    private final ReadOnlyStringWrapper reportProperty = new ReadOnlyStringWrapper("");
+    private int leaks = 0;
+    /** Node owners that have been out of any scene for two sweeps or more, as of the last sweep. */
+    private int detachedOwners = 0;
+    private boolean warnedTooManyPlayers = false;
+
+    public ResourceTracker() {
+        final Timeline sweeper = new Timeline(new KeyFrame(SWEEP_INTERVAL, event -> sweep()));
+        sweeper.setCycleCount(Animation.INDEFINITE);
+        sweeper.play();
+    }
+
+    /**
+     * Opens a media URL in a new player, tracking both the player and its media.
+     *
+     * @param url
+     * @param owner holds the player's first reference
+     * @return
+     */
+    public MediaPlayer openPlayer(final String url, final Object owner) {
+        final Media media = new Media(url);
+        final MediaPlayer player = new MediaPlayer(media);
+        register(media, Kind.MEDIA, url, player);
+        register(player, Kind.PLAYER, url, owner);
+        return player;
+    }
+
+    /**
+     * Opens a second player on media that is already open (i.e. for {@link PreviewSprites}), which keeps the
+     * media alive until both players have been released.
+     *
+     * @param media
+     * @param owner holds the player's first reference
+     * @return
+     */
+    public MediaPlayer openPlayer(final Media media, final Object owner) {
+        final MediaPlayer player = new MediaPlayer(media);
+        if (tracked.containsKey(media)) {
+            retain(media, player);
+        } else {
+            register(media, Kind.MEDIA, media.getSource(), player);
+        }
+        register(player, Kind.PLAYER, media.getSource(), owner);
+        return player;
+    }
+
+    /**
+     * Takes a reference to a decoded image, if it is large enough to be tracked.  Smaller images are left to the
+     * garbage collector alone.
+     *
+     * @param image
+     * @param owner
+     * @return the same image, for convenience
+     */
+    public Image track(final Image image, final Object owner) {
+        if (image == null) return null;
+        if (tracked.containsKey(image)) {
+            retain(image, owner);
+        } else if ((long) image.getWidth() * (long) image.getHeight() * 4 >= LARGE_IMAGE_BYTES) {
+            register(image, Kind.IMAGE, (int) image.getWidth() + "x" + (int) image.getHeight(), owner);
+        }
+        return image;
+    }
+
+    /**
+     * Takes another reference to a tracked resource.  Does nothing if the resource isn't tracked.
+     *
+     * @param resource
+     * @param owner
+     */
+    public void retain(final Object resource, final Object owner) {
+        final Tracked entry = resource == null ? null : tracked.get(resource);
+        if (entry != null) entry.owners.add(new Owner(owner, entry, collectedOwners));
+    }
+
+    /**
+     * Gives up an owner's reference to a tracked resource, disposing of the resource if that was the last one.
+     * Does nothing if the resource isn't tracked, or the owner holds no reference to it.
+     *
+     * @param resource
+     * @param owner
+     */
+    public void release(final Object resource, final Object owner) {
+        final Tracked entry = resource == null ? null : tracked.get(resource);
+        if (entry == null) return;
+        for (final Iterator<Owner> iterator = entry.owners.iterator(); iterator.hasNext(); ) {
+            final Owner reference = iterator.next();
+            if (reference.get() == owner) {
+                iterator.remove();
+                // A cleared reference is never enqueued, so a released owner can't later be mistaken for a leak
+                reference.clear();
+                break;
+            }
+        }
+        if (entry.owners.isEmpty()) dispose(entry);
+    }
+
+    /**
+     * The number of live resources of a kind.
+     *
+     * @param kind
+     * @return
+     */
+    public int count(final Kind kind) {
+        return live[kind.ordinal()];
+    }
+
+    /**
+     * The number of references that were never released, and had to be released when their owners were collected.
+     *
+     * @return
+     */
+    public int getLeaks() {
+        return leaks;
+    }
+
+    /**
+     * A human-readable summary of live resources, e.g. "Native resources: 2 players, 1 media, 3 large images".
+     *
+     * @return
+     */
+    public String summary() {
+        final StringBuilder builder = new StringBuilder("Native resources: ");
+        for (final Kind kind : Kind.values()) {
+            if (kind != Kind.PLAYER) builder.append(", ");
+            builder.append(count(kind)).append(' ').append(kind.plural);
+        }
+        if (leaks > 0) builder.append(" (").append(leaks).append(" leaked)");
+        if (detachedOwners > 0) builder.append(" (").append(detachedOwners).append(" held by detached controls)");
+        return builder.toString();
+    }
+
+    /**
+     * A status bar suffix reporting leaked references and references held by detached controls, or an empty string
+     * while there are none.
+     *
+     * @return
+     */
+    public ReadOnlyStringProperty reportProperty() {
+        return reportProperty.getReadOnlyProperty();
+    }
+
+    private void register(final Object resource, final Kind kind, final String description, final Object owner) {
+        final Tracked entry = new Tracked(resource, kind, description);
+        entry.owners.add(new Owner(owner, entry, collectedOwners));
+        tracked.put(resource, entry);
+        live[kind.ordinal()]++;
+        if (kind == Kind.PLAYER && count(Kind.PLAYER) > PLAYER_WARNING_THRESHOLD && !warnedTooManyPlayers) {
+            warnedTooManyPlayers = true;
+            System.err.println(count(Kind.PLAYER) + " media players are open at once; " + summary());
+        }
+    }
+
+    private void dispose(final Tracked entry) {
+        tracked.remove(entry.resource);
+        live[entry.kind.ordinal()]--;
+        if (entry.kind == Kind.PLAYER) {
+            final MediaPlayer player = (MediaPlayer) entry.resource;
+            player.dispose();
+            release(player.getMedia(), player);
+        }
+        if (count(Kind.PLAYER) <= PLAYER_WARNING_THRESHOLD) warnedTooManyPlayers = false;
+    }
+
+    /**
+     * Releases every reference whose owner has been garbage collected without releasing it, and reports references
+     * held by nodes that have been outside any scene since the last sweep.
+     */
+    private void sweep() {
+        for (Owner reference = (Owner) collectedOwners.poll(); reference != null; reference = (Owner) collectedOwners.poll()) {
+            if (reference.tracked.owners.contains(reference)) releaseLeaked(reference);
+        }
+        detachedOwners = 0;
+        for (final Tracked entry : tracked.values()) {
+            for (final Owner reference : entry.owners) {
+                final Object owner = reference.get();
+                if (!(owner instanceof Node)) continue;
+                if (((Node) owner).getScene() != null) {
+                    reference.detached = false;
+                    reference.reported = false;
+                } else if (reference.detached) {
+                    detachedOwners++;
+                    if (!reference.reported) {
+                        reference.reported = true;
+                        System.err.println("Possible leak of " + entry.kind.name().toLowerCase() + " (" + entry.description
+                                + "): its " + reference.description + " has been out of any scene for "
+                                + SWEEP_INTERVAL.toSeconds() + "s or more without releasing it");
+                    }
+                } else {
+                    reference.detached = true;
+                }
+            }
+        }
+        final List<String> report = new ArrayList<>();
+        if (leaks > 0) report.add(String.format("%d leaked resource%s disposed", leaks, leaks == 1 ? "" : "s"));
+        if (detachedOwners > 0) report.add(String.format("%d held by detached controls", detachedOwners));
+        reportProperty.set(report.isEmpty() ? "" : "  |  " + String.join(", ", report));
+    }
+
+    private void releaseLeaked(final Owner reference) {
+        final Tracked entry = reference.tracked;
+        entry.owners.remove(reference);
+        reference.clear();
+        leaks++;
+        System.err.println("Leaked " + entry.kind.name().toLowerCase() + " (" + entry.description + "): its "
+                + reference.description + " was discarded without releasing it, "
+                + (System.nanoTime() - entry.created) / 1_000_000_000L + "s after it was opened");
+        if (entry.owners.isEmpty()) dispose(entry);
+    }
+}
@@ -0,0 +1,390 @@
+package com.steveperkins.mediagallery;
+
+import javafx.animation.AnimationTimer;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.scene.image.Image;
+import javafx.scene.media.MediaPlayer;
+import javafx.util.Duration;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * <p>Advances through a {@link Gallery} on a fixed schedule.</p>
+ *
+ * <p>Rather than decoding each item when its turn comes, the slideshow keeps the next few items prepared ahead of
+ * time: images are loaded through the shared {@link DecodedImageCache} at near-prefetch priority (so an item already
+ * decoded for the viewer isn't decoded again, and a full-size decode that the heap can't hold falls back to the fit
+ * size), and videos get a {@link MediaPlayer} that is pre-rolled to the <code>READY</code> state.  An
+ * {@link AnimationTimer} checks the next transition deadline on every pulse, so slides change on the first frame
+ * after their deadline.  If I/O falls behind and the next item still isn't ready at its deadline, the miss is
+ * counted and reported through {@link #reportProperty()}, and the item is shown as soon as it is ready.</p>
+ *
+ * <p>Images are shown for a fixed interval.  Videos are played through to the end: whoever puts a video on screen
+ * (the slideshow's own display, or navigation by hand while the slideshow runs) hands its {@link MediaControl} to
+ * {@link #showing(MediaControl)}, and the slideshow advances when the video ends.  It also advances if the player
+ * reports an error, halts or stalls, or is still going {@link #VIDEO_GRACE} after its duration (or
+ * {@link #VIDEO_OPEN_TIMEOUT} after being shown, while its duration is unknown), so a broken video can never stop
+ * the show.</p>
+ *
+ * <p>Prepared slides are registered with the {@link MemoryGovernor} as prefetch, so they are the first thing
+ * dropped under memory pressure, and only one slide is prepared ahead while the heap is under pressure.  Only a
+ * slide's fallback decode counts towards its footprint, since full-size decodes are held (and evicted) by the
+ * cache.</p>
+ *
+ * <p>A pre-rolled player is opened through the {@link ResourceTracker}, with the slide as its owner.  The slide
+ * gives up its reference once it has been displayed (by which time the display holds its own), or when it is
+ * discarded.</p>
+ */
+public class Slideshow {
+
+    public static final Duration VIDEO_GRACE = Duration.seconds(5);
+    public static final Duration VIDEO_OPEN_TIMEOUT = Duration.seconds(30);
+
+    private static final int PREPARE_AHEAD = 3;
+    private static final long LATE_TOLERANCE_NANOS = 50_000_000L;
+
+    /**
+     * A gallery item that has been (or is being) prepared for display.
+     */
+    public static class Slide {
+        private final int position;
+        private final GalleryItem item;
+        private final CompletableFuture<Image> image;
+        private final MediaPlayer mediaPlayer;
+        private final DecodedImageCache imageCache;
+        private final ResourceTracker resourceTracker;
+
+        private Slide(final int position, final GalleryItem item, final DecodedImageCache imageCache,
+                      final ResourceTracker resourceTracker, final double fitWidth, final double fitHeight) {
+            this.position = position;
+            this.item = item;
+            this.imageCache = imageCache;
+            this.resourceTracker = resourceTracker;
+            if (item.isImage()) {
+                this.image = imageCache.load(item, TaskScheduler.Priority.NEAR_PREFETCH, fitWidth, fitHeight);
+                this.mediaPlayer = null;
+            } else {
+                this.image = null;
+                this.mediaPlayer = resourceTracker.openPlayer(item.getUrl(), this);
+                this.mediaPlayer.setAutoPlay(false);
+            }
+        }
+
+        public GalleryItem getItem() {
+            return item;
+        }
+
+        /**
+         * The decoded image, or <code>null</code> if this slide is a video.
+         *
+         * @return
+         */
+        public Image getImage() {
+            return image == null ? null : image.getNow(null);
+        }
+
+        public MediaPlayer getMediaPlayer() {
+            return mediaPlayer;
+        }
+
+        private boolean isReady() {
+            if (image != null) return image.isDone();
+            final MediaPlayer.Status status = mediaPlayer.getStatus();
+            return status == MediaPlayer.Status.READY || isFailed();
+        }
+
+        private boolean isFailed() {
+            if (image != null) return image.isCompletedExceptionally() || image.getNow(null).isError();
+            return mediaPlayer.getError() != null || mediaPlayer.getStatus() == MediaPlayer.Status.HALTED;
+        }
+
+        private long footprint() {
+            // Decoded images are held as 32-bit BGRA; video frames live in native memory.  A full-size decode
+            // belongs to the cache, so only a fallback decode is this slide's alone.
+            final Image decoded = image == null ? null : image.getNow(null);
+            if (decoded == null || imageCache.get(item) == image) return 0;
+            return (long) decoded.getWidth() * (long) decoded.getHeight() * 4;
+        }
+
+        /**
+         * Drops this slide.  A decode under way is left to finish, since it is shared with the cache (and so with
+         * the viewer, if the item is navigated to).
+         */
+        private void discard() {
+            if (mediaPlayer != null) resourceTracker.release(mediaPlayer, this);
+        }
+    }
+
+    private final Gallery gallery;
+    private final MemoryGovernor memoryGovernor;
+    private final DecodedImageCache imageCache;
+    private final ResourceTracker resourceTracker;
+    private final Consumer<Slide> display;
+    private final Deque<Slide> prepared = new ArrayDeque<>();
+    private final ReadOnlyStringWrapper reportProperty = new ReadOnlyStringWrapper("");
+    private final AnimationTimer timer;
+
+    private long intervalNanos = 5_000_000_000L;
+    private double fitWidth = 0;
+    private double fitHeight = 0;
+    private long deadline;
+    private boolean running = false;
+    private boolean waitingForVideo = false;
+    /** The player of the video being waited for, so that events from earlier players are ignored. */
+    private MediaPlayer video;
+    private long videoShownNanos;
+    private boolean deadlineMissed = false;
+    private int shown = 0;
+    private int missed = 0;
+    private long worstLatenessNanos = 0;
+
+    /**
+     * @param gallery the gallery to step through
+     * @param memoryGovernor
+     * @param imageCache
+     * @param resourceTracker
+     * @param display called on the JavaFX application thread with each slide once it is due and ready, which must
+     *                take its own reference to a video slide's player, and pass its control to
+     *                {@link #showing(MediaControl)}
+     */
+    public Slideshow(final Gallery gallery, final MemoryGovernor memoryGovernor, final DecodedImageCache imageCache,
+                     final ResourceTracker resourceTracker, final Consumer<Slide> display) {
+        this.gallery = gallery;
+        this.memoryGovernor = memoryGovernor;
+        this.imageCache = imageCache;
+        this.resourceTracker = resourceTracker;
+        this.display = display;
+        this.timer = new AnimationTimer() {
+            @Override
+            public void handle(final long now) {
+                tick(now);
+            }
+        };
+        memoryGovernor.register("slideshow prefetch", MemoryGovernor.Priority.PREFETCH, new MemoryGovernor.Evictable() {
+            @Override
+            public long footprint() {
+                long total = 0;
+                for (final Slide slide : prepared) total += slide.footprint();
+                return total;
+            }
+
+            @Override
+            public long evict(final long bytes) {
+                // Drop the furthest-ahead slides first, since they are needed last
+                long freed = 0;
+                while (freed < bytes && !prepared.isEmpty()) {
+                    final Slide slide = prepared.removeLast();
+                    freed += slide.footprint();
+                    slide.discard();
+                }
+                return freed;
+            }
+        });
+    }
+
+    /**
+     * Starts the slideshow from the currently-rendered gallery item, which gets a full interval on screen before
+     * the first transition.  If that item is a video, it should then be passed to {@link #showing(MediaControl)}.
+     */
+    public void start() {
+        if (running || gallery.isEmpty()) return;
+        running = true;
+        shown = 0;
+        missed = 0;
+        worstLatenessNanos = 0;
+        deadlineMissed = false;
+        waitingForVideo = false;
+        video = null;
+        deadline = System.nanoTime() + intervalNanos;
+        prepare();
+        updateReport();
+        timer.start();
+    }
+
+    /**
+     * Stops the slideshow, and releases every prepared slide that wasn't shown.
+     */
+    public void stop() {
+        if (!running) return;
+        running = false;
+        timer.stop();
+        prepared.forEach(Slide::discard);
+        prepared.clear();
+        reportProperty.set("");
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Called whenever an item is put on screen, other than an image shown by the slideshow itself.  A video holds
+     * the next transition until it ends (or fails); an image navigated to by hand gets a full interval.  Does
+     * nothing while the slideshow isn't running.
+     *
+     * @param mediaControl the video now on screen, or <code>null</code> if it isn't a video
+     */
+    public void showing(final MediaControl mediaControl) {
+        if (!running) return;
+        if (mediaControl == null) {
+            waitingForVideo = false;
+            video = null;
+            deadline = System.nanoTime() + intervalNanos;
+            return;
+        }
+        final MediaPlayer player = mediaControl.getMediaPlayer();
+        waitingForVideo = true;
+        video = player;
+        videoShownNanos = System.nanoTime();
+        mediaControl.setOnEndOfMedia(() -> videoFinished(player));
+        player.setOnError(() -> videoFinished(player));
+        player.statusProperty().addListener((observable, oldStatus, newStatus) -> {
+            if (newStatus == MediaPlayer.Status.HALTED || newStatus == MediaPlayer.Status.STALLED) {
+                videoFinished(player);
+            }
+        });
+    }
+
+    /**
+     * Sets how long each image stays on screen.
+     *
+     * @param millis
+     */
+    public void setInterval(final long millis) {
+        this.intervalNanos = millis * 1_000_000L;
+    }
+
+    /**
+     * Sets the size that images are decoded to fit, instead of at full size, when the heap can't hold a full-size
+     * decode.
+     *
+     * @param width
+     * @param height
+     */
+    public void setFitSize(final double width, final double height) {
+        this.fitWidth = width;
+        this.fitHeight = height;
+    }
+
+    /**
+     * A short summary of missed deadlines while the slideshow is running, or an empty string when it isn't.
+     *
+     * @return
+     */
+    public ReadOnlyStringProperty reportProperty() {
+        return reportProperty.getReadOnlyProperty();
+    }
+
+    /**
+     * Runs on every JavaFX pulse while the slideshow is active.
+     *
+     * @param now
+     */
+    private void tick(final long now) {
+        if (waitingForVideo && now >= videoCutoff()) videoFinished(video);
+        if (waitingForVideo || now < deadline) return;
+
+        prepare();
+        final Slide next = prepared.peekFirst();
+        if (next == null) return;
+
+        if (!next.isReady()) {
+            // I/O has fallen behind.  Count the miss once, and keep checking on every pulse until it's ready.
+            if (!deadlineMissed) {
+                deadlineMissed = true;
+                missed++;
+                updateReport();
+            }
+            return;
+        }
+        prepared.removeFirst();
+
+        final long lateness = now - deadline;
+        worstLatenessNanos = Math.max(worstLatenessNanos, lateness);
+        if (lateness > LATE_TOLERANCE_NANOS && !deadlineMissed) {
+            missed++;
+        }
+
+        // Keep a steady cadence when on time, but restart the clock after a miss rather than rushing to catch up
+        deadline = deadlineMissed || lateness > LATE_TOLERANCE_NANOS ? now + intervalNanos : deadline + intervalNanos;
+        deadlineMissed = false;
+
+        if (next.isFailed()) {
+            next.discard();
+            gallery.seek(next.position);
+            deadline = now;
+        } else {
+            gallery.seek(next.position);
+            // A video slide's display hands it to showing(), to hold the next transition until it ends
+            waitingForVideo = false;
+            shown++;
+            display.accept(next);
+            // The display has its own reference to the player by now
+            next.discard();
+        }
+        prepare();
+        updateReport();
+    }
+
+    /**
+     * Makes the next slide due immediately, if a player is the video being waited for.
+     *
+     * @param player
+     */
+    private void videoFinished(final MediaPlayer player) {
+        if (!running || !waitingForVideo || player != video) return;
+        waitingForVideo = false;
+        video = null;
+        deadline = System.nanoTime();
+    }
+
+    /**
+     * When to stop waiting for the video on screen, however it is getting on: its duration plus
+     * {@link #VIDEO_GRACE}, or {@link #VIDEO_OPEN_TIMEOUT} while the duration is still unknown.
+     *
+     * @return
+     */
+    private long videoCutoff() {
+        final Duration duration = video.getMedia().getDuration();
+        if (duration == null || duration.isUnknown() || duration.isIndefinite()) {
+            return videoShownNanos + (long) (VIDEO_OPEN_TIMEOUT.toMillis() * 1_000_000L);
+        }
+        return videoShownNanos + (long) ((duration.toMillis() + VIDEO_GRACE.toMillis()) * 1_000_000L);
+    }
+
+    /**
+     * Tops up the queue of prepared slides to the next {@link #PREPARE_AHEAD} gallery positions after the cursor
+     * (or just the next one, while memory is tight).
+     * If the gallery has been navigated or reloaded since the queue was filled, the stale slides are discarded.
+     */
+    private void prepare() {
+        final int size = gallery.size();
+        if (size < 2) return;
+        int expected = (gallery.position() + 1) % size;
+        for (final Slide slide : prepared) {
+            if (slide.position != expected || !slide.item.equals(gallery.get(expected))) {
+                prepared.forEach(Slide::discard);
+                prepared.clear();
+                break;
+            }
+            expected = (expected + 1) % size;
+        }
+        final int ahead = memoryGovernor.isUnderPressure() ? 1 : PREPARE_AHEAD;
+        while (prepared.size() < Math.min(ahead, size - 1)) {
+            final int position = (gallery.position() + 1 + prepared.size()) % size;
+            prepared.addLast(new Slide(position, gallery.get(position), imageCache, resourceTracker, fitWidth, fitHeight));
+        }
+    }
+
+    private void updateReport() {
+        if (!running) return;
+        reportProperty.set(missed == 0
+                ? "  |  Slideshow"
+                : String.format("  |  Slideshow: %d of %d deadlines missed (worst %d ms late)",
+                        missed, shown + (deadlineMissed ? 1 : 0), worstLatenessNanos / 1_000_000L));
+    }
+}
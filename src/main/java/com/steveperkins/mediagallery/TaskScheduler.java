@@ -0,0 +1,312 @@
+package com.steveperkins.mediagallery;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>The one place where background work runs, so that scanning, decoding, prefetching and indexing don't compete
+ * blindly for the same disks and cores.</p>
+ *
+ * <p>Work is split into two pools:</p>
+ *
+ * <ul>
+ *     <li><b>I/O</b> ({@link #submitIo(Priority, File, Callable)}): blocking file reads and directory scans.  A
+ *     fixed set of daemon threads pulls tasks in {@link Priority} order, and each storage device (as identified by
+ *     its {@link FileStore}) has its own concurrency limit.  Lower priorities are held back from the last free slot
+ *     on a device, and bulk work only runs when the device is otherwise idle, so background indexing can't delay
+ *     the read for the image on screen.</li>
+ *     <li><b>CPU</b> ({@link #submitCpu(Priority, Callable)}): decoding and other compute-bound work, on a pool
+ *     sized to the number of cores, again taken in priority order.</li>
+ * </ul>
+ *
+ * <p>Both return a {@link CompletableFuture}.  Cancelling one before it starts removes it from consideration.</p>
+ *
+ * <p>Submitting never touches the file system, since callers are usually on the JavaFX thread and the file may be
+ * on a slow or offline network share.  The device for a file is looked up by path in a cache of directories
+ * already resolved.  The first time a directory is seen, its {@link FileStore} is resolved on one of
+ * {@link #RESOLVER_THREADS} resolver threads, and the task is queued once that is known.  Tasks submitted for the
+ * same directory while it is being resolved wait on that one lookup, so scanning a tree on an offline share ties up
+ * at most the resolver threads, rather than a blocked thread per directory.</p>
+ */
+public class TaskScheduler {
+
+    /**
+     * Quality-of-service classes, from most to least urgent.
+     */
+    public enum Priority {
+        VISIBLE, NEAR_PREFETCH, THUMBNAIL, BULK
+    }
+
+    private static final int IO_THREADS = 16;
+    private static final int DEVICE_CONCURRENCY = 4;
+    private static final int RESOLVER_THREADS = 2;
+
+    private static class Task<T> {
+        private final Priority priority;
+        private final long sequence;
+        private final Callable<T> callable;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Task(final Priority priority, final long sequence, final Callable<T> callable) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.callable = callable;
+        }
+
+        private void run() {
+            if (future.isDone()) return;
+            try {
+                future.complete(callable.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * The queued and running I/O work for one storage device.
+     */
+    private static class Device {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final Deque<Task<?>>[] queues = new Deque[Priority.values().length];
+        private int active = 0;
+
+        private Device() {
+            for (int i = 0; i < queues.length; i++) queues[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Orders CPU work by priority, then submission order.
+     */
+    private static class CpuTask implements Runnable, Comparable<CpuTask> {
+        private final Task<?> task;
+
+        private CpuTask(final Task<?> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(final CpuTask other) {
+            final int byPriority = task.priority.compareTo(other.task.priority);
+            return byPriority != 0 ? byPriority : Long.compare(task.sequence, other.task.sequence);
+        }
+    }
+
+    private final Object lock = new Object();
+    private final Map<Object, Device> devices = new HashMap<>();
+    private final Map<File, Object> deviceKeys = new ConcurrentHashMap<>();
+    /** Lookups under way, by the directory that tasks waiting on them were submitted from. */
+    private final Map<File, CompletableFuture<Object>> resolving = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ThreadPoolExecutor cpuPool;
+    private final ExecutorService resolver;
+
+    public TaskScheduler() {
+        for (int i = 0; i < IO_THREADS; i++) {
+            final Thread thread = new Thread(this::ioLoop, "io-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final AtomicLong cpuThreads = new AtomicLong();
+        cpuPool = new ThreadPoolExecutor(cores, cores, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "cpu-worker-" + cpuThreads.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        final AtomicLong resolverThreads = new AtomicLong();
+        resolver = Executors.newFixedThreadPool(RESOLVER_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable, "device-resolver-" + resolverThreads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues blocking I/O against a file.
+     *
+     * @param priority
+     * @param file the file (or directory) being read, which determines the device queue
+     * @param callable
+     * @param <T>
+     * @return
+     */
+    public <T> CompletableFuture<T> submitIo(final Priority priority, final File file, final Callable<T> callable) {
+        final Task<T> task = new Task<>(priority, sequence.getAndIncrement(), callable);
+        final Object deviceKey = cachedDeviceKey(file);
+        if (deviceKey != null) {
+            enqueue(deviceKey, task);
+        } else {
+            // A directory resolved by the lookup counts, even if the lookup was for another file beside this one
+            resolve(file).thenAccept(resolved -> {
+                final Object key = cachedDeviceKey(file);
+                enqueue(key != null ? key : resolved, task);
+            });
+        }
+        return task.future;
+    }
+
+    /**
+     * Queues compute-bound work.
+     *
+     * @param priority
+     * @param callable
+     * @param <T>
+     * @return
+     */
+    public <T> CompletableFuture<T> submitCpu(final Priority priority, final Callable<T> callable) {
+        final Task<T> task = new Task<>(priority, sequence.getAndIncrement(), callable);
+        cpuPool.execute(new CpuTask(task));
+        return task.future;
+    }
+
+    /**
+     * The body of each I/O worker thread.
+     */
+    private void ioLoop() {
+        while (true) {
+            final Task<?> task;
+            final Device device;
+            synchronized (lock) {
+                Task<?> next = null;
+                Device nextDevice = null;
+                while (next == null) {
+                    for (final Device candidate : devices.values()) {
+                        final Task<?> head = head(candidate);
+                        if (head != null && (next == null || head.priority.compareTo(next.priority) < 0
+                                || (head.priority == next.priority && head.sequence < next.sequence))) {
+                            next = head;
+                            nextDevice = candidate;
+                        }
+                    }
+                    if (next == null) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                nextDevice.queues[next.priority.ordinal()].removeFirst();
+                nextDevice.active++;
+                task = next;
+                device = nextDevice;
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (lock) {
+                    device.active--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * The most urgent task that a device has room to start right now, or <code>null</code>.  Cancelled tasks at
+     * the front of a queue are dropped along the way.
+     */
+    private Task<?> head(final Device device) {
+        for (final Priority priority : Priority.values()) {
+            final Deque<Task<?>> queue = device.queues[priority.ordinal()];
+            while (!queue.isEmpty() && queue.peekFirst().future.isDone()) queue.removeFirst();
+            if (queue.isEmpty()) continue;
+            return device.active < limit(priority) ? queue.peekFirst() : null;
+        }
+        return null;
+    }
+
+    /**
+     * How many tasks may be running on a device for a task of a given priority to start.
+     */
+    private static int limit(final Priority priority) {
+        switch (priority) {
+            case VISIBLE:
+                return DEVICE_CONCURRENCY;
+            case BULK:
+                return 1;
+            default:
+                return DEVICE_CONCURRENCY - 1;
+        }
+    }
+
+    private void enqueue(final Object deviceKey, final Task<?> task) {
+        synchronized (lock) {
+            devices.computeIfAbsent(deviceKey, key -> new Device()).queues[task.priority.ordinal()].addLast(task);
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Identifies the storage device holding a file from the cache alone, without touching the file system.  A file
+     * is looked up under its own path (for a directory that has been resolved) and then under its parent.
+     *
+     * @return <code>null</code> if the device isn't known yet
+     */
+    private Object cachedDeviceKey(final File file) {
+        if (file == null) return "";
+        final File absolute = file.getAbsoluteFile();
+        final Object key = deviceKeys.get(absolute);
+        if (key != null) return key;
+        final File parent = absolute.getParentFile();
+        return parent == null ? "" : deviceKeys.get(parent);
+    }
+
+    /**
+     * Resolves the device for a file on the resolver pool, or joins the lookup already under way for another file
+     * in the same directory.
+     */
+    private CompletableFuture<Object> resolve(final File file) {
+        final File absolute = file.getAbsoluteFile();
+        final File parent = absolute.getParentFile();
+        final File directory = parent == null ? absolute : parent;
+        return resolving.computeIfAbsent(directory, key -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return resolveDeviceKey(absolute);
+            } finally {
+                // Later submissions find the device in the cache from now on
+                resolving.remove(key);
+            }
+        }, resolver));
+    }
+
+    /**
+     * Identifies the storage device holding a file, and caches it for the file's directory (or for the file itself,
+     * if it is a directory).  Called on a resolver thread, since it may block.
+     */
+    private Object resolveDeviceKey(final File file) {
+        final File absolute = file.getAbsoluteFile();
+        final File directory = absolute.isDirectory() ? absolute : absolute.getParentFile();
+        if (directory == null) return "";
+        return deviceKeys.computeIfAbsent(directory, dir -> {
+            try {
+                return Files.getFileStore(dir.toPath());
+            } catch (IOException | RuntimeException e) {
+                return "";
+            }
+        });
+    }
+}
@@ -0,0 +1,150 @@
+package com.steveperkins.mediagallery;
+
+import javafx.util.Duration;
+
+import java.io.File;
+
+/**
+ * <p>Java Flight Recorder events for each stage of getting an item on screen: loading a file, scanning its
+ * directory, reading and decoding it, rendering it, resizing it, and the life of a video's player.  Each event
+ * carries whatever is known about the item at that stage (path, size in bytes, format, pixel dimensions, whether it
+ * came from a cache), so a recording taken on a slow machine shows which stage, and which file, cost the time.  For
+ * example:</p>
+ *
+ * <pre>    java -XX:StartFlightRecording=filename=gallery.jfr -jar MediaGallery-javafx.jar</pre>
+ *
+ * <p>The events live in the "MediaGallery" category, and are named after their {@link Stage}.  Stages are timed with
+ * {@link Span}s:</p>
+ *
+ * <pre>    final Trace.Span span = Trace.begin(Trace.Stage.DECODE).size(bytes.length);
+ *    ...
+ *    span.dimensions(image.getWidth(), image.getHeight()).end();</pre>
+ *
+ * <p>JFR's event API (<code>jdk.jfr</code>) is only present from Java 8u262 onwards.  On older runtimes, or when no
+ * recording is running, spans do nothing and cost next to nothing.  This class checks for the API once, and only
+ * ever touches <code>FlightEvents</code> (whose classes extend <code>jdk.jfr.Event</code>) if it is there.</p>
+ *
+ * <p>That guard is only at runtime.  <code>FlightEvents</code> is compiled against <code>jdk.jfr</code>, so the build
+ * needs a JDK that has it (8u262 or later, or 11+), and can't use <code>--release 8</code>, whose API signatures
+ * predate JFR.  Use <code>-source 8 -target 8</code> instead.</p>
+ */
+public final class Trace {
+
+    /**
+     * The stages that are traced, one JFR event type each.
+     */
+    public enum Stage { LOAD, SCAN, READ, DECODE, RENDER, RESIZE, PLAYER }
+
+    private static final boolean AVAILABLE = isAvailable();
+    private static final Span DISABLED = new Span(null);
+
+    private Trace() {
+    }
+
+    /**
+     * Starts timing a stage.  The span must be {@link Span#end()}ed for its event to be recorded, and may be ended
+     * on a different thread from the one that began it.
+     *
+     * @param stage
+     * @return
+     */
+    public static Span begin(final Stage stage) {
+        if (!AVAILABLE) return DISABLED;
+        final Object event = FlightEvents.begin(stage);
+        return event == null ? DISABLED : new Span(event);
+    }
+
+    /**
+     * A stage being timed, and the details to record with it.  The setters do nothing (and so needn't be avoided)
+     * when the stage isn't being recorded.
+     */
+    public static final class Span {
+        final Object event;
+        String path;
+        long size;
+        String format;
+        int width;
+        int height;
+        boolean cacheHit;
+        String detail;
+        long mediaDuration;
+        private boolean ended = false;
+
+        private Span(final Object event) {
+            this.event = event;
+        }
+
+        public Span path(final File file) {
+            if (event != null && file != null) path = file.getPath();
+            return this;
+        }
+
+        public Span path(final String path) {
+            if (event != null) this.path = path;
+            return this;
+        }
+
+        /**
+         * @param size in bytes
+         * @return
+         */
+        public Span size(final long size) {
+            if (event != null) this.size = size;
+            return this;
+        }
+
+        public Span format(final String format) {
+            if (event != null) this.format = format;
+            return this;
+        }
+
+        public Span dimensions(final double width, final double height) {
+            if (event != null) {
+                this.width = (int) width;
+                this.height = (int) height;
+            }
+            return this;
+        }
+
+        public Span cacheHit(final boolean cacheHit) {
+            if (event != null) this.cacheHit = cacheHit;
+            return this;
+        }
+
+        /**
+         * Free text qualifying the stage, e.g. the decoder used, the player status, or why the stage was cut short.
+         *
+         * @param detail
+         * @return
+         */
+        public Span detail(final String detail) {
+            if (event != null) this.detail = detail;
+            return this;
+        }
+
+        public Span mediaDuration(final Duration duration) {
+            if (event != null && duration != null && !duration.isUnknown() && !duration.isIndefinite()) {
+                mediaDuration = (long) duration.toMillis();
+            }
+            return this;
+        }
+
+        /**
+         * Stops timing, and records the event.  Only the first call has any effect.
+         */
+        public void end() {
+            if (event == null || ended) return;
+            ended = true;
+            FlightEvents.end(this);
+        }
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Trace.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}